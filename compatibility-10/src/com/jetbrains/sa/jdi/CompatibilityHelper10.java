@@ -18,6 +18,8 @@ package com.jetbrains.sa.jdi;
 import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.memory.SystemDictionary;
 import sun.jvm.hotspot.oops.*;
+import sun.jvm.hotspot.runtime.AddressVisitor;
+import sun.jvm.hotspot.runtime.JNIHandles;
 import sun.jvm.hotspot.runtime.JavaThread;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.utilities.KlassArray;
@@ -97,6 +99,25 @@ class CompatibilityHelper10 implements Compatibility {
         }
     }
 
+    @Override
+    public HeapScanner.Layout getHeapLayout(VM vm) {
+        boolean compressed = vm.isCompressedKlassPointersEnabled();
+        return new HeapScanner.Layout(compressed ? compressedKlassOffset : klassOffset, compressed,
+                vm.getDebugger().getNarrowKlassBase(), vm.getDebugger().getNarrowKlassShift(),
+                vm.isCompressedOopsEnabled(), vm.getDebugger().getNarrowOopBase(), vm.getDebugger().getNarrowOopShift());
+    }
+
+    @Override
+    public void globalJNIHandlesDo(VM vm, AddressVisitor visitor) {
+        // JNIHandleBlock or OopStorage, depending on the update
+        try {
+            Object handles = JNIHandles.class.getMethod("globalHandles").invoke(vm.getJNIHandles());
+            handles.getClass().getMethod("oopsDo", AddressVisitor.class).invoke(handles, visitor);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public List<Klass> allClasses(SystemDictionary systemDictionary, VM vm) {
         List<Klass> saKlasses = new ArrayList<>();
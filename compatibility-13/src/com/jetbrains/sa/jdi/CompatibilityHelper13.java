@@ -18,6 +18,7 @@ package com.jetbrains.sa.jdi;
 import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.memory.SystemDictionary;
 import sun.jvm.hotspot.oops.*;
+import sun.jvm.hotspot.runtime.AddressVisitor;
 import sun.jvm.hotspot.runtime.JavaThread;
 import sun.jvm.hotspot.runtime.Threads;
 import sun.jvm.hotspot.runtime.VM;
@@ -98,6 +99,19 @@ class CompatibilityHelper13 implements Compatibility {
         }
     }
 
+    @Override
+    public HeapScanner.Layout getHeapLayout(VM vm) {
+        boolean compressed = vm.isCompressedKlassPointersEnabled();
+        return new HeapScanner.Layout(compressed ? compressedKlassOffset : klassOffset, compressed,
+                vm.getDebugger().getNarrowKlassBase(), vm.getDebugger().getNarrowKlassShift(),
+                vm.isCompressedOopsEnabled(), vm.getDebugger().getNarrowOopBase(), vm.getDebugger().getNarrowOopShift());
+    }
+
+    @Override
+    public void globalJNIHandlesDo(VM vm, AddressVisitor visitor) {
+        vm.getJNIHandles().globalHandles().oopsDo(visitor);
+    }
+
     @Override
     public List<Klass> allClasses(SystemDictionary systemDictionary, VM vm) {
         List<Klass> saKlasses = new ArrayList<>();
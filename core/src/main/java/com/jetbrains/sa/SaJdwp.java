@@ -29,6 +29,9 @@ public class SaJdwp {
 
     private static void usage() {
         System.out.println("Usage: java -jar sa-jdwp.jar <pid> (port)");
+        System.out.println("       java -jar sa-jdwp.jar -dump <file> <pid>");
+        System.out.println("       java -jar sa-jdwp.jar -snapshot <file> <pid>");
+        System.out.println("       java -jar sa-jdwp.jar -query <snapshot> <query> (arguments)");
         System.exit(1);
     }
 
@@ -36,8 +39,23 @@ public class SaJdwp {
         if (args.length < 1) {
             usage();
         }
-        String port = args.length > 1 ? args[1] : "";
-        List<String> commands = getServerProcessCommand(args[0], port, true, getJarPath());
+        List<String> commands;
+        if ("-query".equals(args[0])) {
+            // the snapshot is read without SA, in this process
+            SaJdwpSnapshotQuery.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if ("-dump".equals(args[0]) || "-snapshot".equals(args[0])) {
+            if (args.length < 3) {
+                usage();
+            }
+            String file = new File(args[1]).getAbsolutePath();
+            commands = "-dump".equals(args[0])
+                    ? getDumpProcessCommand(args[2], file, getJarPath())
+                    : getSnapshotProcessCommand(args[2], file, getJarPath());
+        } else {
+            String port = args.length > 1 ? args[1] : "";
+            commands = getServerProcessCommand(args[0], port, true, getJarPath());
+        }
         try {
             startServer(commands);
         } catch (Exception e) {
@@ -52,18 +70,60 @@ public class SaJdwp {
 
     @SuppressWarnings("WeakerAccess")
     public static List<String> getServerProcessCommand(String pidString, String port, boolean server, String pathToJar) throws Exception {
-        Properties systemProperties;
+        return getServerProcessCommand(getSystemProperties(pidString), pidString, port, server, pathToJar);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static List<String> getServerProcessCommand(Properties systemProperties, String target, String port, boolean server, String pathToJar) throws Exception {
+        List<String> commands = getJavaCommand(systemProperties, pathToJar, false);
+        String serverClassName = server ? SaJdwpListeningServer.class.getName() : SaJdwpAttachingServer.class.getName();
+        Collections.addAll(commands, serverClassName, target, port);
+        return commands;
+    }
+
+    /**
+     * Command to write an HPROF heap dump of the target (pid or core file) into the file, the process exits when done
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static List<String> getDumpProcessCommand(String pidString, String file, String pathToJar) throws Exception {
+        return getDumpProcessCommand(getSystemProperties(pidString), pidString, file, pathToJar);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static List<String> getDumpProcessCommand(Properties systemProperties, String target, String file, String pathToJar) throws Exception {
+        List<String> commands = getJavaCommand(systemProperties, pathToJar, false);
+        Collections.addAll(commands, SaJdwpHprofDumper.class.getName(), target, file);
+        return commands;
+    }
+
+    /**
+     * Command to write a heap snapshot of the target (pid or core file) into the file, to be queried with {@link SaJdwpSnapshotQuery}
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static List<String> getSnapshotProcessCommand(String pidString, String file, String pathToJar) throws Exception {
+        return getSnapshotProcessCommand(getSystemProperties(pidString), pidString, file, pathToJar);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static List<String> getSnapshotProcessCommand(Properties systemProperties, String target, String file, String pathToJar) throws Exception {
+        List<String> commands = getJavaCommand(systemProperties, pathToJar, true);
+        Collections.addAll(commands, SaJdwpSnapshotWriter.class.getName(), target, file);
+        return commands;
+    }
+
+    private static Properties getSystemProperties(String pidString) throws Exception {
         VirtualMachine vm = VirtualMachine.attach(pidString);
         try {
-            systemProperties = vm.getSystemProperties();
+            return vm.getSystemProperties();
         } finally {
             vm.detach();
         }
-        return getServerProcessCommand(systemProperties, pidString, port, server, pathToJar);
     }
 
-    @SuppressWarnings("WeakerAccess")
-    public static List<String> getServerProcessCommand(Properties systemProperties, String target, String port, boolean server, String pathToJar) throws Exception {
+    /**
+     * @param heapGraph the process builds the graph of the whole heap and needs more memory than the default heap size
+     */
+    private static List<String> getJavaCommand(Properties systemProperties, String pathToJar, boolean heapGraph) throws Exception {
         String javaHome = systemProperties.getProperty("java.home");
         String version = systemProperties.getProperty("java.specification.version");
 
@@ -83,12 +143,26 @@ public class SaJdwp {
         if (commands.isEmpty()) {
             throw new IllegalStateException("Unable to start on version " + version);
         }
-
-        String serverClassName = server ? SaJdwpListeningServer.class.getName() : SaJdwpAttachingServer.class.getName();
-        Collections.addAll(commands, serverClassName, target, port);
+        String maxHeap = System.getProperty("sa.jdwp.server.xmx");
+        if (maxHeap != null) {
+            commands.add(1, "-Xmx" + maxHeap);
+        } else if (heapGraph && "64".equals(systemProperties.getProperty("sun.arch.data.model"))) {
+            // half of the memory instead of the default quarter, computed by the started jvm itself,
+            // so it respects container limits where that jvm knows them, 32-bit jvms keep their default
+            commands.add(1, isModern(version) ? "-XX:MaxRAMPercentage=50" : "-XX:MaxRAMFraction=2");
+        }
         return commands;
     }
 
+    // MaxRAMFraction is deprecated since 10 in favor of MaxRAMPercentage
+    private static boolean isModern(String version) {
+        try {
+            return Integer.parseInt(version) >= 10;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     private static boolean isWindows() {
         return System.getProperty("os.name").toLowerCase(Locale.US).startsWith("windows");
     }
@@ -129,6 +203,8 @@ public class SaJdwp {
                 "--add-opens",   JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.oops=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.utilities=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.debugger=ALL-UNNAMED",
+                "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.code=ALL-UNNAMED",
+                "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.gc.shared=ALL-UNNAMED", // for jdk 13+
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.tools.jcore=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.classfile=ALL-UNNAMED", // for jdk 10
                 "-cp", pathToJar);
@@ -190,7 +266,8 @@ public class SaJdwp {
         try {
             while ((s = stdOutput.readLine()) != null) {
                 System.out.println(s);
-                if (s.startsWith(SaJdwpListeningServer.WAITING_FOR_DEBUGGER) || s.startsWith(SaJdwpAttachingServer.SERVER_READY)) {
+                if (s.startsWith(SaJdwpListeningServer.WAITING_FOR_DEBUGGER) || s.startsWith(SaJdwpAttachingServer.SERVER_READY)
+                        || s.startsWith(SaJdwpHprofDumper.DUMP_WRITTEN) || s.startsWith(SaJdwpSnapshotWriter.SNAPSHOT_WRITTEN)) {
                     success = true;
                 }
             }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa;
+
+import com.jetbrains.sa.jdi.HprofWriter;
+import com.jetbrains.sa.jdi.VirtualMachineImpl;
+
+import java.io.File;
+
+public class SaJdwpHprofDumper {
+    static final String DUMP_WRITTEN = "Heap dump written to ";
+
+    // do not allow instance creation
+    private SaJdwpHprofDumper() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // By default SA agent classes prefer Windows process debugger
+        // to windbg debugger. SA expects special properties to be set
+        // to choose other debuggers. We will set those here before
+        // attaching to SA agent.
+
+        System.setProperty("sun.jvm.hotspot.debugger.useWindbgDebugger", "true");
+
+        VirtualMachineImpl vm = SaJdwpUtils.createVirtualMachine(args[0]);
+        try {
+            File file = new File(args[1]);
+            HprofWriter.write(vm, file);
+            System.out.println(DUMP_WRITTEN + file.getAbsolutePath());
+        } finally {
+            vm.dispose();
+        }
+    }
+}
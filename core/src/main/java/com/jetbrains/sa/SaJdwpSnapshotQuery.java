@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa;
+
+import com.jetbrains.sa.jdi.HeapSnapshot;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Queries a heap snapshot written by {@link SaJdwpSnapshotWriter}, no target or SA is needed
+ */
+public class SaJdwpSnapshotQuery {
+    // do not allow instance creation
+    private SaJdwpSnapshotQuery() {
+    }
+
+    static void usage() {
+        System.out.println("Usage: java -jar sa-jdwp.jar -query <snapshot> histogram (max)");
+        System.out.println("       java -jar sa-jdwp.jar -query <snapshot> instances <class name>");
+        System.out.println("       java -jar sa-jdwp.jar -query <snapshot> referrers <address>");
+        System.out.println("       java -jar sa-jdwp.jar -query <snapshot> path <address>");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            usage();
+        }
+        HeapSnapshot snapshot = HeapSnapshot.open(new File(args[0]));
+        String query = args[1];
+        if ("histogram".equals(query)) {
+            List<HeapSnapshot.ClassEntry> entries = snapshot.histogram(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+            System.out.println(" num     #instances         #bytes  class name");
+            for (int i = 0; i < entries.size(); i++) {
+                HeapSnapshot.ClassEntry entry = entries.get(i);
+                System.out.println(String.format("%4d: %14d %14d  %s", i + 1, entry.count, entry.size, entry.name));
+            }
+        } else if ("instances".equals(query) && args.length > 2) {
+            for (int node : snapshot.instances(args[2])) {
+                System.out.println(describe(snapshot, node));
+            }
+        } else if ("referrers".equals(query) && args.length > 2) {
+            for (int node : snapshot.referrers(findObject(snapshot, args[2]))) {
+                System.out.println(describe(snapshot, node));
+            }
+        } else if ("path".equals(query) && args.length > 2) {
+            int[] path = snapshot.pathToRoot(findObject(snapshot, args[2]));
+            if (path.length == 0) {
+                System.out.println("The object is not strongly reachable");
+            }
+            for (int i = 0; i < path.length; i++) {
+                String line = describe(snapshot, path[i]);
+                System.out.println(i == 0 ? line + " (" + HeapSnapshot.rootKindName(snapshot.rootKind(path[i])) + ")" : line);
+            }
+        } else {
+            usage();
+        }
+    }
+
+    private static int findObject(HeapSnapshot snapshot, String address) {
+        long value = address.startsWith("0x") ? Long.parseLong(address.substring(2), 16) : Long.parseLong(address);
+        int node = snapshot.index(value);
+        if (node < 0) {
+            throw new IllegalArgumentException("No object at " + address);
+        }
+        return node;
+    }
+
+    private static String describe(HeapSnapshot snapshot, int node) {
+        return "0x" + Long.toHexString(snapshot.address(node)) + " " + snapshot.classOf(node).name + " " + snapshot.shallowSize(node);
+    }
+}
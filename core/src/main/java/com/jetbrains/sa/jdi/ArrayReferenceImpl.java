@@ -146,18 +146,6 @@ public class ArrayReferenceImpl extends ObjectReferenceImpl {
         return vals;
     }
 
-    protected void visitReferences(HandleVisitor visitor) {
-        if (ref() instanceof ObjArray) {
-            ObjArray objArray = (ObjArray) ref();
-            for (int i = 0; i < length; i++) {
-                OopHandle valueHandle = objArray.getOopHandleAt(i);
-                if (valueHandle != null && visitor.visit(valueHandle)) {
-                    return;
-                }
-            }
-        }
-    }
-
     public String toString() {
         return "instance of " + arrayType().componentSignature() + "[" + length() + "] (id=" + uniqueID() + ")";
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instance counts and shallow sizes per class, like jmap -histo, computed in one parallel heap pass.
+ * Sizes come from the klass layout helpers, no objects or mirrors are created for the heap objects.
+ */
+public class ClassHistogram {
+    public static class Entry {
+        public final ReferenceTypeImpl type;
+        public final long count;
+        public final long size;
+
+        private Entry(ReferenceTypeImpl type, long count, long size) {
+            this.type = type;
+            this.count = count;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<Entry> BY_SIZE = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            if (e1.size != e2.size) {
+                return e1.size > e2.size ? -1 : 1;
+            }
+            return e1.count > e2.count ? -1 : e1.count < e2.count ? 1 : 0;
+        }
+    };
+
+    // do not allow instance creation
+    private ClassHistogram() {
+    }
+
+    /**
+     * @param max maximum number of entries, 0 for all
+     * @return entries sorted by the total shallow size, largest first
+     */
+    public static List<Entry> compute(VirtualMachineImpl vm, int max) {
+        List<Counter> parts = vm.heapScanner().scanParallel(new HeapScanner.VisitorFactory<Counter>() {
+            public Counter create() {
+                return new Counter();
+            }
+        });
+
+        LongCounter counts = new LongCounter(1024);
+        LongCounter sizes = new LongCounter(1024);
+        for (Counter part : parts) {
+            for (long klass : part.counts.keys()) {
+                counts.add(klass, part.counts.get(klass));
+                sizes.add(klass, part.sizes.get(klass));
+            }
+        }
+
+        // type ids are klass addresses
+        Map<Long, ReferenceTypeImpl> types = new HashMap<Long, ReferenceTypeImpl>();
+        for (ReferenceTypeImpl type : vm.allClasses()) {
+            types.put(type.uniqueID(), type);
+        }
+        List<Entry> res = new ArrayList<Entry>(counts.size());
+        for (long klass : counts.keys()) {
+            ReferenceTypeImpl type = types.get(klass);
+            // objects of classes not reported by allClasses (not prepared yet) are skipped
+            if (type != null) {
+                res.add(new Entry(type, counts.get(klass), sizes.get(klass)));
+            }
+        }
+        Collections.sort(res, BY_SIZE);
+        if (max > 0 && res.size() > max) {
+            return new ArrayList<Entry>(res.subList(0, max));
+        }
+        return res;
+    }
+
+    // called on pool threads
+    private static class Counter implements HeapScanner.ObjectVisitor {
+        private final LongCounter counts = new LongCounter(1024);
+        private final LongCounter sizes = new LongCounter(1024);
+
+        public boolean visit(long address, long klass, long size) {
+            counts.add(klass, 1);
+            sizes.add(klass, size);
+            return false;
+        }
+    }
+}
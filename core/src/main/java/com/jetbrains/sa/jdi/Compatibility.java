@@ -21,6 +21,7 @@ import sun.jvm.hotspot.oops.InstanceKlass;
 import sun.jvm.hotspot.oops.Klass;
 import sun.jvm.hotspot.oops.Method;
 import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.AddressVisitor;
 import sun.jvm.hotspot.runtime.JavaThread;
 import sun.jvm.hotspot.runtime.VM;
 
@@ -46,6 +47,13 @@ public interface Compatibility {
 
     Address getKlassAddress(Oop oop);
 
+    /**
+     * @return null if objects can only be read through SA oops
+     */
+    HeapScanner.Layout getHeapLayout(VM vm);
+
+    void globalJNIHandlesDo(VM vm, AddressVisitor visitor);
+
     List<Klass> allClasses(SystemDictionary systemDictionary, VM vm);
 
     List<ReferenceTypeImpl> visibleClasses(final Oop ref, final VirtualMachineImpl vm);
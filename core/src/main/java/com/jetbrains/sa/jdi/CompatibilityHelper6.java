@@ -18,6 +18,7 @@ package com.jetbrains.sa.jdi;
 import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.memory.SystemDictionary;
 import sun.jvm.hotspot.oops.*;
+import sun.jvm.hotspot.runtime.AddressVisitor;
 import sun.jvm.hotspot.runtime.JavaThread;
 import sun.jvm.hotspot.runtime.VM;
 
@@ -56,7 +57,8 @@ class CompatibilityHelper6 implements Compatibility {
 
     @Override
     public String getSourceDebugExtension(InstanceKlass saKlass) {
-        return saKlass.getSourceDebugExtension().asString();
+        Symbol sourceDebugExtension = saKlass.getSourceDebugExtension();
+        return sourceDebugExtension != null ? sourceDebugExtension.asString() : null;
     }
 
     @Override
@@ -101,6 +103,17 @@ class CompatibilityHelper6 implements Compatibility {
         }
     }
 
+    @Override
+    public HeapScanner.Layout getHeapLayout(VM vm) {
+        // klasses are oops in the perm gen, objects are read through SA
+        return null;
+    }
+
+    @Override
+    public void globalJNIHandlesDo(VM vm, AddressVisitor visitor) {
+        vm.getJNIHandles().globalHandles().oopsDo(visitor);
+    }
+
     @Override
     public List<Klass> allClasses(SystemDictionary systemDictionary, VM vm) {
         final List<Klass> saKlasses = new ArrayList<Klass>();
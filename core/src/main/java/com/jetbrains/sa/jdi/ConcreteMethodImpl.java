@@ -43,43 +43,133 @@ import sun.jvm.hotspot.oops.LineNumberTableElement;
 import sun.jvm.hotspot.oops.LocalVariableTableElement;
 import sun.jvm.hotspot.tools.jcore.ByteCodeRewriter;
 
+import java.io.ByteArrayOutputStream;
 import java.lang.ref.SoftReference;
 import java.util.*;
 
 public class ConcreteMethodImpl extends MethodImpl {
 
     /*
-     * A subset of the line number info that is softly cached
+     * Base (java) stratum line number table, sorted by code index.
+     * Locations are only created when requested.
      */
-    static private class SoftLocationXRefs {
-        final String stratumID;   // The stratum of this information
-        final Map<Integer, List<LocationImpl>> lineMapper;     // Maps line number to location(s)
-        final List<LocationImpl> lineLocations; // List of locations ordered by code index
+    private class BaseLineTable {
+        final long[] codeIndexes;
+        final int[] lineNumbers;
+        private final LocationImpl[] locations;
+        final List<LocationImpl> lineLocations = new AbstractList<LocationImpl>() {
+            @Override
+            public LocationImpl get(int index) {
+                return location(index);
+            }
 
-        /*
-         * Note: these do not necessarily correspond to
-         * the line numbers of the first and last elements
-         * in the lineLocations list. Use these only for bounds
-         * checking and with lineMapper.
+            @Override
+            public int size() {
+                return codeIndexes.length;
+            }
+        };
+
+        BaseLineTable(long[] codeIndexes, int[] lineNumbers) {
+            this.codeIndexes = codeIndexes;
+            this.lineNumbers = lineNumbers;
+            this.locations = new LocationImpl[codeIndexes.length];
+        }
+
+        LocationImpl location(int index) {
+            LocationImpl loc = locations[index];
+            if (loc == null) {
+                loc = new LocationImpl(ConcreteMethodImpl.this, codeIndexes[index]);
+                loc.addBaseLineInfo(new BaseLineInfo(lineNumbers[index], declaringType));
+                locations[index] = loc;
+            }
+            return loc;
+        }
+
+        /**
+         * @return index of the entry covering the code index, code before the first entry belongs to the first one
          */
-        final int lowestLine;
-        final int highestLine;
-
-        SoftLocationXRefs(String stratumID, Map<Integer, List<LocationImpl>> lineMapper, List<LocationImpl> lineLocations, int lowestLine, int highestLine) {
-            this.stratumID = stratumID;
-            this.lineMapper = Collections.unmodifiableMap(lineMapper);
-            this.lineLocations = Collections.unmodifiableList(lineLocations);
-            this.lowestLine = lowestLine;
-            this.highestLine = highestLine;
+        int find(long codeIndex) {
+            int low = 0;
+            int high = codeIndexes.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (codeIndexes[mid] <= codeIndex) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
         }
     }
 
-    private SoftReference<SoftLocationXRefs> softBaseLocationXRefsRef;
-    private SoftReference<SoftLocationXRefs> softOtherLocationXRefsRef;
+    /*
+     * Line table of a non-base stratum: indexes of the base entries starting a new stratum line,
+     * ordered by code index. Lines are mapped with the stratum index of the SDE shared by the type,
+     * locations are the base ones, created lazily and resolving their stratum lines through the same index.
+     */
+    private class StratumLineTable {
+        final BaseLineTable base;
+        final int[] baseIndexes;
+        final List<LocationImpl> lineLocations = new AbstractList<LocationImpl>() {
+            @Override
+            public LocationImpl get(int index) {
+                return base.location(baseIndexes[index]);
+            }
+
+            @Override
+            public int size() {
+                return baseIndexes.length;
+            }
+        };
+
+        StratumLineTable(BaseLineTable base, SDE.Stratum stratum) {
+            this.base = base;
+            int[] indexes = new int[base.lineNumbers.length];
+            int size = 0;
+            int lastRecord = -1;
+            int lastLineNumber = -1;
+            for (int i = 0; i < base.lineNumbers.length; i++) {
+                int record = stratum.lineRecord(base.lineNumbers[i]);
+                if (record < 0) {
+                    // location not mapped in this stratum
+                    continue;
+                }
+                int lineNumber = stratum.lineNumber(record, base.lineNumbers[i]);
+
+                // remove unmapped and dup lines
+                if (lineNumber != -1 && (record != lastRecord || lineNumber != lastLineNumber)) {
+                    lastRecord = record;
+                    lastLineNumber = lineNumber;
+                    indexes[size++] = i;
+                }
+            }
+            baseIndexes = Arrays.copyOf(indexes, size);
+        }
+
+        /**
+         * @return index of the last entry not after the code index, code before the first entry belongs to the first one
+         */
+        int find(long codeIndex) {
+            int low = 0;
+            int high = baseIndexes.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (base.codeIndexes[baseIndexes[mid]] <= codeIndex) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private SoftReference<BaseLineTable> softBaseLineTableRef;
+    // by stratum id, a class has few strata and debuggers switch between them
+    private SoftReference<Map<String, StratumLineTable>> softStratumLineTablesRef;
     private SoftReference<List<LocalVariableImpl>> variablesRef = null;
-    private int firstIndex = -1;
-    private int lastIndex = -1;
-    private SoftReference<byte[]> bytecodesRef = null;
+    private volatile byte[] bytecodes = null;
 
     ConcreteMethodImpl(ReferenceTypeImpl declaringType, sun.jvm.hotspot.oops.Method saMethod) {
         super(declaringType, saMethod);
@@ -89,100 +179,88 @@ public class ConcreteMethodImpl extends MethodImpl {
         return (int) saMethod.getSizeOfParameters();
     }
 
-    private SoftLocationXRefs getLocations(SDE.Stratum stratum) {
+    private List<LocationImpl> getLineLocations(SDE.Stratum stratum) {
         if (stratum.isJava()) {
-            return getBaseLocations();
-        }
-        String stratumID = stratum.id();
-        SoftLocationXRefs info = (softOtherLocationXRefsRef == null) ? null : softOtherLocationXRefsRef.get();
-        if (info != null && info.stratumID.equals(stratumID)) {
-            return info;
+            return getBaseLineTable().lineLocations;
         }
+        return getStratumLineTable(stratum).lineLocations;
+    }
 
-        List<LocationImpl> lineLocations = new ArrayList<LocationImpl>();
-        Map<Integer, List<LocationImpl>> lineMapper = new HashMap<Integer, List<LocationImpl>>();
-        int lowestLine = -1;
-        int highestLine = -1;
-        SDE.LineStratum lastLineStratum = null;
-        SDE.Stratum baseStratum = declaringType.stratum(SDE.BASE_STRATUM_NAME);
-        for (Object lineLocation : getBaseLocations().lineLocations) {
-            LocationImpl loc = (LocationImpl) lineLocation;
-            int baseLineNumber = loc.lineNumber(baseStratum);
-            SDE.LineStratum lineStratum = stratum.lineStratum(declaringType, baseLineNumber);
-
-            if (lineStratum == null) {
-                // location not mapped in this stratum
-                continue;
-            }
-
-            int lineNumber = lineStratum.lineNumber();
+    private StratumLineTable getStratumLineTable(SDE.Stratum stratum) {
+        Map<String, StratumLineTable> tables = (softStratumLineTablesRef == null) ? null : softStratumLineTablesRef.get();
+        if (tables == null) {
+            tables = new HashMap<String, StratumLineTable>(4);
+            softStratumLineTablesRef = new SoftReference<Map<String, StratumLineTable>>(tables);
+        }
+        StratumLineTable table = tables.get(stratum.id());
+        if (table == null) {
+            table = new StratumLineTable(getBaseLineTable(), stratum);
+            tables.put(stratum.id(), table);
+        }
+        return table;
+    }
 
-            // remove unmapped and dup lines
-            if ((lineNumber != -1) && (!lineStratum.equals(lastLineStratum))) {
-                lastLineStratum = lineStratum;
-                // Remember the largest/smallest line number
-                if (lineNumber > highestLine) {
-                    highestLine = lineNumber;
-                }
-                if ((lineNumber < lowestLine) || (lowestLine == -1)) {
-                    lowestLine = lineNumber;
-                }
+    /*
+     * Line and variable tables as read from SA, without mirrors,
+     * the mirrors are created when the tables are installed
+     */
+    private static class Tables {
+        long[] codeIndexes;
+        int[] lineNumbers;
+        // null if there is no local variable table
+        String[] variableNames;
+        String[] variableSignatures;
+        String[] variableGenericSignatures;
+        int[] variableSlots;
+        long[] variableStarts;
+        int[] variableLengths;
+    }
 
-                loc.addStratumLineInfo(
-                        new StratumLineInfo(stratumID,
-                                lineNumber,
-                                lineStratum.sourceName(),
-                                lineStratum.sourcePath()));
-
-                // Add to the location list
-                lineLocations.add(loc);
-
-                // Add to the line -> locations map
-                Integer key = lineNumber;
-                List<LocationImpl> mappedLocs = lineMapper.get(key);
-                if (mappedLocs == null) {
-                    mappedLocs = new ArrayList<LocationImpl>(1);
-                    lineMapper.put(key, mappedLocs);
+    /**
+     * Reads line and variable tables of the methods in one pass, on the calling thread:
+     * the SA method data is not safe for concurrent readers (see {@link ConcurrencyUtils})
+     */
+    public static void readTables(List<? extends MethodImpl> methods) {
+        for (MethodImpl method : methods) {
+            if (method instanceof ConcreteMethodImpl) {
+                ConcreteMethodImpl concreteMethod = (ConcreteMethodImpl) method;
+                Tables tables = new Tables();
+                readLineTable(concreteMethod.saMethod, tables);
+                readVariableTable(concreteMethod.saMethod, tables);
+                concreteMethod.setBaseLineTable(tables);
+                if (tables.variableNames != null) {
+                    concreteMethod.setVariables(tables);
                 }
-                mappedLocs.add(loc);
             }
         }
-
-        info = new SoftLocationXRefs(stratumID,
-                                lineMapper, lineLocations,
-                                lowestLine, highestLine);
-        softOtherLocationXRefsRef = new SoftReference<SoftLocationXRefs>(info);
-        return info;
     }
 
-    private SoftLocationXRefs getBaseLocations() {
-        SoftLocationXRefs info = (softBaseLocationXRefsRef == null) ? null : softBaseLocationXRefsRef.get();
-        if (info != null) {
-            return info;
+    private BaseLineTable getBaseLineTable() {
+        BaseLineTable table = (softBaseLineTableRef == null) ? null : softBaseLineTableRef.get();
+        if (table != null) {
+            return table;
         }
+        Tables tables = new Tables();
+        readLineTable(saMethod, tables);
+        return setBaseLineTable(tables);
+    }
 
-        byte[] codeBuf = bytecodes();
-        firstIndex = 0;
-        lastIndex = codeBuf.length - 1;
-
-        boolean hasLineInfo = saMethod.hasLineNumberTable();
-        LineNumberTableElement[] lntab = null;
-        int count;
+    private BaseLineTable setBaseLineTable(Tables tables) {
+        BaseLineTable table = new BaseLineTable(tables.codeIndexes, tables.lineNumbers);
+        softBaseLineTableRef = new SoftReference<BaseLineTable>(table);
+        return table;
+    }
 
-        if (hasLineInfo) {
-            lntab = saMethod.getLineNumberTable();
-            count = lntab.length;
-        } else {
-            count = 0;
-        }
+    private static void readLineTable(sun.jvm.hotspot.oops.Method saMethod, Tables res) {
+        LineNumberTableElement[] lntab = saMethod.hasLineNumberTable() ? saMethod.getLineNumberTable() : null;
+        int count = lntab != null ? lntab.length : 0;
 
-        List<LocationImpl> lineLocations = new ArrayList<LocationImpl>(count);
-        Map<Integer, List<LocationImpl>> lineMapper = new HashMap<Integer, List<LocationImpl>>();
-        int lowestLine = -1;
-        int highestLine = -1;
+        long[] codeIndexes = new long[count];
+        int[] lineNumbers = new int[count];
+        int size = 0;
+        boolean sorted = true;
         for (int i = 0; i < count; i++) {
             long bci = lntab[i].getStartBCI();
-            int lineNumber = lntab[i].getLineNumber();
 
             /*
              * Some compilers will point multiple consecutive
@@ -193,39 +271,44 @@ public class ConcreteMethodImpl extends MethodImpl {
              * location.
              */
             if ((i + 1 == count) || (bci != lntab[i+1].getStartBCI())) {
-                // Remember the largest/smallest line number
-                if (lineNumber > highestLine) {
-                    highestLine = lineNumber;
-                }
-                if ((lineNumber < lowestLine) || (lowestLine == -1)) {
-                    lowestLine = lineNumber;
+                if (size > 0 && codeIndexes[size - 1] > bci) {
+                    sorted = false;
                 }
-                LocationImpl loc = new LocationImpl(this, bci);
-                loc.addBaseLineInfo(
-                    new BaseLineInfo(lineNumber, declaringType));
-
-                // Add to the location list
-                lineLocations.add(loc);
-
-                // Add to the line -> locations map
-                Integer key = lineNumber;
-                List<LocationImpl> mappedLocs = lineMapper.get(key);
-                if (mappedLocs == null) {
-                    mappedLocs = new ArrayList<LocationImpl>(1);
-                    lineMapper.put(key, mappedLocs);
-                }
-                mappedLocs.add(loc);
+                codeIndexes[size] = bci;
+                lineNumbers[size] = lntab[i].getLineNumber();
+                size++;
             }
         }
+        if (size != count) {
+            codeIndexes = Arrays.copyOf(codeIndexes, size);
+            lineNumbers = Arrays.copyOf(lineNumbers, size);
+        }
+        if (!sorted) {
+            sortByCodeIndex(codeIndexes, lineNumbers);
+        }
+        res.codeIndexes = codeIndexes;
+        res.lineNumbers = lineNumbers;
+    }
 
-        info = new SoftLocationXRefs(SDE.BASE_STRATUM_NAME, lineMapper, lineLocations, lowestLine, highestLine);
-        softBaseLocationXRefsRef = new SoftReference<SoftLocationXRefs>(info);
-        return info;
+    // the table is almost always sorted already, stable insertion sort is enough
+    private static void sortByCodeIndex(long[] codeIndexes, int[] lineNumbers) {
+        for (int i = 1; i < codeIndexes.length; i++) {
+            long codeIndex = codeIndexes[i];
+            int lineNumber = lineNumbers[i];
+            int j = i - 1;
+            while (j >= 0 && codeIndexes[j] > codeIndex) {
+                codeIndexes[j + 1] = codeIndexes[j];
+                lineNumbers[j + 1] = lineNumbers[j];
+                j--;
+            }
+            codeIndexes[j + 1] = codeIndex;
+            lineNumbers[j + 1] = lineNumber;
+        }
     }
 
     public List<LocationImpl> allLineLocations(SDE.Stratum stratum)
         throws AbsentInformationException {
-        List<LocationImpl> lineLocations = getLocations(stratum).lineLocations;
+        List<LocationImpl> lineLocations = getLineLocations(stratum);
 
         if (lineLocations.size() == 0) {
             throw new AbsentInformationException();
@@ -236,28 +319,14 @@ public class ConcreteMethodImpl extends MethodImpl {
 
     LineInfo codeIndexToLineInfo(SDE.Stratum stratum,
                                  long codeIndex) {
-        if (firstIndex == -1) {
-            getBaseLocations();
-        }
-
         /*
          * Check for invalid code index.
          */
-        if (codeIndex < firstIndex || codeIndex > lastIndex) {
+        if (codeIndex < 0 || codeIndex >= saMethod.getCodeSize()) {
             throw new InternalError(
                     "Location with invalid code index");
         }
 
-        List<LocationImpl> lineLocations = getLocations(stratum).lineLocations;
-
-        /*
-         * Check for absent line numbers.
-         */
-        if (lineLocations.size() == 0) {
-            return super.codeIndexToLineInfo(stratum, codeIndex);
-        }
-
-        Iterator<LocationImpl> iter = lineLocations.iterator();
         /*
          * Treat code before the beginning of the first line table
          * entry as part of the first line.  javac will generate
@@ -266,15 +335,29 @@ public class ConcreteMethodImpl extends MethodImpl {
          * scope to synthetic fields in the local class.  Same for
          * other language prolog code.
          */
-        LocationImpl bestMatch = iter.next();
-        while (iter.hasNext()) {
-            LocationImpl current = iter.next();
-            if (current.codeIndex() > codeIndex) {
-                break;
+        if (stratum.isJava()) {
+            BaseLineTable table = getBaseLineTable();
+            if (table.codeIndexes.length == 0) {
+                return super.codeIndexToLineInfo(stratum, codeIndex);
             }
-            bestMatch = current;
+            return new BaseLineInfo(table.lineNumbers[table.find(codeIndex)], declaringType);
         }
-        return bestMatch.getLineInfo(stratum);
+
+        StratumLineTable table = getStratumLineTable(stratum);
+
+        /*
+         * Check for absent line numbers.
+         */
+        if (table.baseIndexes.length == 0) {
+            return super.codeIndexToLineInfo(stratum, codeIndex);
+        }
+
+        int baseLineNumber = table.base.lineNumbers[table.baseIndexes[table.find(codeIndex)]];
+        SDE.LineStratum lineStratum = stratum.lineStratum(declaringType, baseLineNumber);
+        return new StratumLineInfo(stratum.id(),
+                lineStratum.lineNumber(),
+                lineStratum.sourceName(),
+                lineStratum.sourcePath());
     }
 
     public List<LocalVariableImpl> variables() throws AbsentInformationException {
@@ -282,22 +365,38 @@ public class ConcreteMethodImpl extends MethodImpl {
     }
 
     public byte[] bytecodes() {
-        byte[] bytecodes = (bytecodesRef == null) ? null :
-                bytecodesRef.get();
+        /*
+         * Arrays are always modifiable, so it is a little unsafe
+         * to return the cached bytecodes directly; instead, we
+         * make a clone at the cost of using more memory.
+         */
+        return getBytecodes().clone();
+    }
+
+    public int bytecodesLength() {
+        return getBytecodes().length;
+    }
+
+    public void writeBytecodes(ByteArrayOutputStream out) {
+        byte[] bytecodes = getBytecodes();
+        out.write(bytecodes, 0, bytecodes.length);
+    }
+
+    /*
+     * Rewritten bytecodes are kept as long as the method mirror itself,
+     * the array is never modified after the rewrite and never given out.
+     */
+    private byte[] getBytecodes() {
+        byte[] bytecodes = this.bytecodes;
         if (bytecodes == null) {
             bytecodes = saMethod.getByteCode();
             Klass klass = declaringType.ref();
             if (klass instanceof InstanceKlass) {
                 new ByteCodeRewriter(saMethod, ((InstanceKlass) klass).getConstants(), bytecodes).rewrite();
             }
-            bytecodesRef = new SoftReference<byte[]>(bytecodes);
+            this.bytecodes = bytecodes;
         }
-        /*
-         * Arrays are always modifiable, so it is a little unsafe
-         * to return the cached bytecodes directly; instead, we
-         * make a clone at the cost of using more memory.
-         */
-        return bytecodes.clone();
+        return bytecodes;
     }
 
     private List<LocalVariableImpl> getVariables() throws AbsentInformationException {
@@ -306,21 +405,43 @@ public class ConcreteMethodImpl extends MethodImpl {
         if (variables != null) {
             return variables;
         }
+        Tables tables = new Tables();
+        readVariableTable(saMethod, tables);
+        if (tables.variableNames == null) {
+            throw new AbsentInformationException();
+        }
+        return setVariables(tables);
+    }
+
+    private List<LocalVariableImpl> setVariables(Tables tables) {
+        List<LocalVariableImpl> variables = new ArrayList<LocalVariableImpl>(tables.variableNames.length);
+        for (int i = 0; i < tables.variableNames.length; i++) {
+            long codeIndex = tables.variableStarts[i];
+            LocationImpl scopeStart = new LocationImpl(this, codeIndex);
+            LocationImpl scopeEnd = new LocationImpl(this, codeIndex + tables.variableLengths[i] - 1);
+            variables.add(new LocalVariableImpl(this,
+                    tables.variableSlots[i], scopeStart, scopeEnd,
+                    tables.variableNames[i], tables.variableSignatures[i], tables.variableGenericSignatures[i]));
+        }
+        variables = Collections.unmodifiableList(variables);
+        variablesRef = new SoftReference<List<LocalVariableImpl>>(variables);
+        return variables;
+    }
 
+    private static void readVariableTable(sun.jvm.hotspot.oops.Method saMethod, Tables res) {
         // if there are no locals, there won't be a LVT
         if (saMethod.getMaxLocals() == 0) {
-           variables = Collections.unmodifiableList(Collections.<LocalVariableImpl>emptyList());
-           variablesRef = new SoftReference<List<LocalVariableImpl>>(variables);
-           return variables;
+            setVariableCount(res, 0);
+            return;
         }
 
         if (! saMethod.hasLocalVariableTable()) {
-            throw new AbsentInformationException();
+            return;
         }
         //Build up the JDI view of local variable table.
         LocalVariableTableElement[] locals = saMethod.getLocalVariableTable();
-        int localCount = locals.length;
-        variables = new ArrayList<LocalVariableImpl>(localCount);
+        setVariableCount(res, locals.length);
+        int count = 0;
         for (LocalVariableTableElement local : locals) {
             String name =
                     saMethod.getConstants().getSymbolAt(local.getNameCPIndex()).asString();
@@ -333,31 +454,31 @@ public class ConcreteMethodImpl extends MethodImpl {
             boolean isInternalName = name.startsWith("this") &&
                     (name.length() == 4 || name.charAt(4) == '$' || !Character.isJavaIdentifierPart(name.charAt(4)));
             if (!isInternalName) {
-                int slot = local.getSlot();
-                long codeIndex = local.getStartBCI();
-                int length = local.getLength();
-                LocationImpl scopeStart = new LocationImpl(this, codeIndex);
-                LocationImpl scopeEnd = new LocationImpl( this, codeIndex + length - 1);
-                String signature =
+                res.variableNames[count] = name;
+                res.variableSlots[count] = local.getSlot();
+                res.variableStarts[count] = local.getStartBCI();
+                res.variableLengths[count] = local.getLength();
+                res.variableSignatures[count] =
                         saMethod.getConstants().getSymbolAt(local.getDescriptorCPIndex()).asString();
 
                 int genericSigIndex = local.getSignatureCPIndex();
-                String genericSignature = null;
                 if (genericSigIndex != 0) {
-                    genericSignature = saMethod.getConstants().getSymbolAt(genericSigIndex).asString();
+                    res.variableGenericSignatures[count] = saMethod.getConstants().getSymbolAt(genericSigIndex).asString();
                 }
-
-                LocalVariableImpl variable =
-                        new LocalVariableImpl(this,
-                                slot, scopeStart, scopeEnd,
-                                name, signature, genericSignature);
-                // Add to the variable list
-                variables.add(variable);
+                count++;
             }
         }
+        if (count != locals.length) {
+            res.variableNames = Arrays.copyOf(res.variableNames, count);
+        }
+    }
 
-        variables = Collections.unmodifiableList(variables);
-        variablesRef = new SoftReference<List<LocalVariableImpl>>(variables);
-        return variables;
+    private static void setVariableCount(Tables res, int count) {
+        res.variableNames = new String[count];
+        res.variableSignatures = new String[count];
+        res.variableGenericSignatures = new String[count];
+        res.variableSlots = new int[count];
+        res.variableStarts = new long[count];
+        res.variableLengths = new int[count];
     }
 }
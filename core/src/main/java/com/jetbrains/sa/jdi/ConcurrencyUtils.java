@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool for computations split over independent parts of the target (heap regions).
+ * Tasks read the target memory raw, with {@code Debugger.readBytesFromProcess} (synchronized by the debuggers),
+ * and decode it with tables prepared on the calling thread.
+ * The SA object model (oops, klasses, fields, frames, method data) is not thread safe: its wrappers, VM singletons
+ * and field offsets are initialized lazily without synchronization. Tasks call it only holding {@link #SA_LOCK},
+ * for the rare objects the tables do not cover; work that needs it throughout, such as stack walks
+ * or method tables, runs on the calling thread.
+ * Mirror registries of {@link VirtualMachineImpl} and lazy caches of mirrors are not thread safe either:
+ * mirrors are created and their caches filled on the calling thread from the results.
+ * The number of threads is {@code sa.jdwp.threads}, 1 disables parallel execution.
+ */
+public class ConcurrencyUtils {
+    static final int THREADS = Math.max(1, Integer.getInteger("sa.jdwp.threads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Held by tasks for any call into the SA object model, the calling thread waits for the tasks meanwhile
+     */
+    static final Object SA_LOCK = new Object();
+
+    private static ExecutorService ourExecutor;
+
+    public interface Task<P, R> {
+        R compute(P part) throws Exception;
+    }
+
+    // do not allow instance creation
+    private ConcurrencyUtils() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (ourExecutor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            ourExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "sa-jdwp worker " + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return ourExecutor;
+    }
+
+    /**
+     * Computes the task for all parts, in parallel if there are at least {@code minParallelParts} of them
+     * @return results in the order of parts
+     */
+    public static <P, R> List<R> map(List<P> parts, final Task<P, R> task, int minParallelParts) {
+        List<R> res = new ArrayList<R>(parts.size());
+        if (THREADS == 1 || parts.size() < Math.max(2, minParallelParts)) {
+            for (P part : parts) {
+                try {
+                    res.add(task.compute(part));
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return res;
+        }
+        List<Future<R>> futures = new ArrayList<Future<R>>(parts.size());
+        ExecutorService executor = getExecutor();
+        for (final P part : parts) {
+            futures.add(executor.submit(new Callable<R>() {
+                public R call() throws Exception {
+                    return task.compute(part);
+                }
+            }));
+        }
+        try {
+            for (Future<R> future : futures) {
+                res.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<R> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.OopUtilities;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds deadlocks in the thread-waits-for-thread graph, refer to ThreadService::find_deadlocks_at_safepoint.
+ * A thread waits for the owner of the monitor it is trying to enter,
+ * or for the exclusive owner of the java.util.concurrent synchronizer it is parked on.
+ */
+public class DeadlockDetector {
+    public static class BlockedThread {
+        public final ThreadReferenceImpl thread;
+        /**
+         * the monitor object or the AbstractOwnableSynchronizer the thread is blocked on
+         */
+        public final ObjectReferenceImpl lock;
+        private final ThreadReferenceImpl owner;
+
+        private BlockedThread(ThreadReferenceImpl thread, ObjectReferenceImpl lock, ThreadReferenceImpl owner) {
+            this.thread = thread;
+            this.lock = lock;
+            this.owner = owner;
+        }
+    }
+
+    // do not allow instance creation
+    private DeadlockDetector() {
+    }
+
+    /**
+     * @return deadlock cycles, each thread in a cycle waits for the next one, the last one waits for the first
+     */
+    public static List<List<BlockedThread>> findDeadlocks(VirtualMachineImpl vm) {
+        List<ThreadReferenceImpl> threads = vm.allThreads();
+        Map<Long, Integer> indexes = new HashMap<Long, Integer>();
+        for (int i = 0; i < threads.size(); i++) {
+            indexes.put(threads.get(i).uniqueID(), i);
+        }
+
+        // each thread waits for at most one other thread,
+        // so the strongly connected components with more than one thread are exactly the simple cycles
+        BlockedThread[] blocked = new BlockedThread[threads.size()];
+        int[] next = new int[threads.size()];
+        for (int i = 0; i < threads.size(); i++) {
+            blocked[i] = blockedThread(vm, threads.get(i));
+            Integer ownerIndex = blocked[i] != null ? indexes.get(blocked[i].owner.uniqueID()) : null;
+            next[i] = ownerIndex != null && ownerIndex != i ? ownerIndex : -1;
+        }
+
+        List<List<BlockedThread>> res = new ArrayList<List<BlockedThread>>();
+        // 0 - not visited, i + 1 - visited in the walk started from thread i
+        int[] visitedBy = new int[threads.size()];
+        for (int i = 0; i < threads.size(); i++) {
+            int current = i;
+            while (current >= 0 && visitedBy[current] == 0) {
+                visitedBy[current] = i + 1;
+                current = next[current];
+            }
+            if (current >= 0 && visitedBy[current] == i + 1) {
+                // closed a new cycle
+                List<BlockedThread> cycle = new ArrayList<BlockedThread>();
+                int member = current;
+                do {
+                    cycle.add(blocked[member]);
+                    member = next[member];
+                } while (member != current);
+                res.add(cycle);
+            }
+        }
+        return res;
+    }
+
+    private static BlockedThread blockedThread(VirtualMachineImpl vm, ThreadReferenceImpl thread) {
+        if (thread.getJavaThread() == null) {
+            return null;
+        }
+        OopHandle pending = vm.monitorIndex().pendingMonitor(thread);
+        if (pending != null) {
+            ObjectReferenceImpl lock = vm.objectMirror(pending);
+            ThreadReferenceImpl owner = lock.owningThread();
+            return owner != null ? new BlockedThread(thread, lock, owner) : null;
+        }
+        Oop blocker = OopUtilities.threadOopGetParkBlocker(thread.ref());
+        if (blocker != null && blocker.getKlass() instanceof InstanceKlass) {
+            // only AbstractOwnableSynchronizer has this field
+            Field ownerField = ((InstanceKlass) blocker.getKlass()).findField("exclusiveOwnerThread", "Ljava/lang/Thread;");
+            if (ownerField instanceof OopField) {
+                Oop owner = ((OopField) ownerField).getValue(blocker);
+                if (owner != null) {
+                    return new BlockedThread(thread, vm.objectMirror(blocker), (ThreadReferenceImpl) vm.objectMirror(owner));
+                }
+            }
+        }
+        return null;
+    }
+}
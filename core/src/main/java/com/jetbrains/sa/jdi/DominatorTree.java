@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.util.Arrays;
+
+/**
+ * Dominator tree of the heap graph with retained sizes, computed with the Semi-NCA algorithm
+ * (semidominators as in Lengauer-Tarjan, immediate dominators as nearest common ancestors in the DFS tree).
+ * A virtual root refers to all GC roots, objects dominated only by it have {@link #ROOT} as the dominator.
+ */
+public class DominatorTree {
+    public static final int ROOT = -1;
+    public static final int UNREACHABLE = -2;
+
+    private final HeapGraph myGraph;
+    private final int[] myDominators; // node -> immediate dominator node, ROOT or UNREACHABLE
+    private final long[] myRetainedSizes; // node -> retained size, 0 for unreachable objects
+
+    DominatorTree(HeapGraph graph) {
+        myGraph = graph;
+        int size = graph.size();
+        int[] edgeStarts = graph.edgeStarts;
+        int[] edges = graph.edges;
+
+        // depth first numbering, 0 is the virtual root
+        int[] order = new int[size + 1]; // number -> node
+        int[] numbers = new int[size]; // node -> number, 0 if not reachable
+        int[] parents = new int[size + 1];
+        int count = 1;
+        int[] stackNodes = new int[size];
+        int[] stackEdges = new int[size];
+        for (int root : graph.roots) {
+            if (numbers[root] != 0) {
+                continue;
+            }
+            numbers[root] = count;
+            order[count++] = root;
+            int top = 0;
+            stackNodes[0] = root;
+            stackEdges[0] = edgeStarts[root];
+            while (top >= 0) {
+                int node = stackNodes[top];
+                int edge = stackEdges[top];
+                if (edge < edgeStarts[node + 1]) {
+                    stackEdges[top] = edge + 1;
+                    int next = edges[edge];
+                    if (numbers[next] == 0 && !isRoot(graph, next)) {
+                        numbers[next] = count;
+                        parents[count] = numbers[node];
+                        order[count++] = next;
+                        top++;
+                        stackNodes[top] = next;
+                        stackEdges[top] = edgeStarts[next];
+                    }
+                } else {
+                    top--;
+                }
+            }
+        }
+        stackNodes = null;
+        stackEdges = null;
+
+        // semidominators, in the reverse order
+        int[] reverseStarts = graph.reverseStarts();
+        int[] reverseEdges = graph.reverseEdges();
+        int[] semi = new int[count];
+        int[] labels = new int[count];
+        int[] ancestors = new int[count];
+        int[] path = new int[count];
+        for (int i = 0; i < count; i++) {
+            semi[i] = i;
+            labels[i] = i;
+            ancestors[i] = -1;
+        }
+        for (int w = count - 1; w > 0; w--) {
+            int node = order[w];
+            if (parents[w] == 0) {
+                // GC roots are referred by the virtual root
+                semi[w] = 0;
+            } else {
+                for (int e = reverseStarts[node]; e < reverseStarts[node + 1]; e++) {
+                    int v = numbers[reverseEdges[e]];
+                    if (v != 0) {
+                        int u = eval(v, ancestors, labels, semi, path);
+                        if (semi[u] < semi[w]) {
+                            semi[w] = semi[u];
+                        }
+                    }
+                }
+            }
+            ancestors[w] = parents[w];
+        }
+        labels = null;
+        ancestors = null;
+        path = null;
+
+        // immediate dominators are the nearest common ancestors of the parent and the semidominator
+        int[] dominators = parents;
+        for (int w = 1; w < count; w++) {
+            while (dominators[w] > semi[w]) {
+                dominators[w] = dominators[dominators[w]];
+            }
+        }
+        semi = null;
+
+        long[] retained = new long[count];
+        for (int w = 1; w < count; w++) {
+            retained[w] = graph.sizes[order[w]];
+        }
+        for (int w = count - 1; w > 0; w--) {
+            retained[dominators[w]] += retained[w];
+        }
+
+        myDominators = new int[size];
+        myRetainedSizes = new long[size];
+        Arrays.fill(myDominators, UNREACHABLE);
+        for (int w = 1; w < count; w++) {
+            int node = order[w];
+            myDominators[node] = dominators[w] == 0 ? ROOT : order[dominators[w]];
+            myRetainedSizes[node] = retained[w];
+        }
+    }
+
+    private static boolean isRoot(HeapGraph graph, int node) {
+        return Arrays.binarySearch(graph.roots, node) >= 0;
+    }
+
+    /**
+     * @return the vertex with the minimal semidominator on the forest path to v, compressing the path
+     */
+    private static int eval(int v, int[] ancestors, int[] labels, int[] semi, int[] path) {
+        if (ancestors[v] < 0) {
+            return v;
+        }
+        int top = 0;
+        for (int x = v; ancestors[ancestors[x]] >= 0; x = ancestors[x]) {
+            path[top++] = x;
+        }
+        while (top > 0) {
+            int x = path[--top];
+            int ancestor = ancestors[x];
+            if (semi[labels[ancestor]] < semi[labels[x]]) {
+                labels[x] = labels[ancestor];
+            }
+            ancestors[x] = ancestors[ancestor];
+        }
+        return labels[v];
+    }
+
+    /**
+     * @return the immediate dominator node, {@link #ROOT} or {@link #UNREACHABLE}
+     */
+    public int dominator(int node) {
+        return myDominators[node];
+    }
+
+    /**
+     * @return shallow size of the object and of all objects reachable only through it, 0 for unreachable objects
+     */
+    public long retainedSize(int node) {
+        return myRetainedSizes[node];
+    }
+
+    /**
+     * @param max maximum number of nodes, 0 for all
+     * @return objects dominated only by the GC roots, the largest retained sizes first
+     */
+    public int[] topDominators(int max) {
+        int candidates = 0;
+        for (int dominator : myDominators) {
+            if (dominator == ROOT) {
+                candidates++;
+            }
+        }
+        int limit = max > 0 ? Math.min(max, candidates) : candidates;
+        // min-heap of the largest found so far
+        int[] heap = new int[limit];
+        int heapSize = 0;
+        for (int node = 0; node < myDominators.length && limit > 0; node++) {
+            if (myDominators[node] != ROOT) {
+                continue;
+            }
+            if (heapSize < limit) {
+                heap[heapSize] = node;
+                siftUp(heap, heapSize++);
+            } else if (myRetainedSizes[node] > myRetainedSizes[heap[0]]) {
+                heap[0] = node;
+                siftDown(heap, heapSize);
+            }
+        }
+        int[] res = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            res[i] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize);
+        }
+        return res;
+    }
+
+    private void siftUp(int[] heap, int index) {
+        int node = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (myRetainedSizes[heap[parent]] <= myRetainedSizes[node]) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = node;
+    }
+
+    private void siftDown(int[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        int node = heap[0];
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && myRetainedSizes[heap[child + 1]] < myRetainedSizes[heap[child]]) {
+                child++;
+            }
+            if (myRetainedSizes[heap[child]] >= myRetainedSizes[node]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = node;
+    }
+
+    public HeapGraph graph() {
+        return myGraph;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.Instance;
+import sun.jvm.hotspot.oops.ObjArray;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.runtime.BasicType;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.JavaVFrame;
+import sun.jvm.hotspot.runtime.MonitorInfo;
+import sun.jvm.hotspot.runtime.StackValueCollection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shortest reference chain keeping an object alive, from a GC root of {@link HeapGraph} to the object.
+ * Only strong references are followed: an object reachable only through weak, soft or phantom references has no path.
+ */
+public class GcRootPath {
+    /**
+     * one of HeapGraph.ROOT_*, 0 if the object is not strongly reachable
+     */
+    public final byte rootKind;
+    public final String rootDescription;
+    /**
+     * from the root to the object
+     */
+    public final List<ObjectReferenceImpl> objects;
+    /**
+     * the field or the array element of the previous object referring to the object, empty for the root
+     */
+    public final List<String> fields;
+
+    private GcRootPath(byte rootKind, String rootDescription, List<ObjectReferenceImpl> objects, List<String> fields) {
+        this.rootKind = rootKind;
+        this.rootDescription = rootDescription;
+        this.objects = objects;
+        this.fields = fields;
+    }
+
+    /**
+     * @return null if there is no object at the address
+     */
+    public static GcRootPath find(VirtualMachineImpl vm, long address) {
+        HeapGraph graph = vm.heapGraph();
+        int node = graph.index(address);
+        if (node < 0) {
+            return null;
+        }
+        int[] path = graph.pathToRoot(node);
+        if (path.length == 0) {
+            return new GcRootPath((byte) 0, "", Collections.<ObjectReferenceImpl>emptyList(), Collections.<String>emptyList());
+        }
+        List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(path.length);
+        List<String> fields = new ArrayList<String>(path.length);
+        for (int i = 0; i < path.length; i++) {
+            ObjectReferenceImpl object = vm.objectMirror(graph.address(path[i]));
+            fields.add(i == 0 ? "" : referenceName(objects.get(i - 1), object.uniqueID()));
+            objects.add(object);
+        }
+        byte kind = graph.rootKind(path[0]);
+        return new GcRootPath(kind, describeRoot(vm, kind, objects.get(0)), objects, fields);
+    }
+
+    private static String referenceName(ObjectReferenceImpl referrer, long target) {
+        if (referrer.ref() instanceof ObjArray) {
+            ObjArray array = (ObjArray) referrer.ref();
+            for (int i = 0; i < array.getLength(); i++) {
+                if (is(referrer.vm(), array.getOopHandleAt(i), target)) {
+                    return "[" + i + "]";
+                }
+            }
+        } else {
+            for (FieldImpl field : referrer.referenceType().allFields()) {
+                if (!field.isStatic() && field.ref().getFieldType().isOop() && !isWeak(field)
+                        && is(referrer.vm(), ((OopField) field.ref()).getValueAsOopHandle(referrer.ref()), target)) {
+                    return field.name();
+                }
+            }
+        }
+        // references the VM keeps for classes of other loaders than the bootstrap one, see HeapGraph
+        if (referrer instanceof ClassObjectReferenceImpl) {
+            ReferenceTypeImpl type = ((ClassObjectReferenceImpl) referrer).reflectedType();
+            ClassLoaderReferenceImpl loader = type.classLoader();
+            if (loader != null && loader.uniqueID() == target) {
+                return "<class loader>";
+            }
+            for (FieldImpl field : type.fields()) {
+                if (field.isStatic()) {
+                    try {
+                        ValueImpl value = type.getValue(field);
+                        if (value instanceof ObjectReferenceImpl && ((ObjectReferenceImpl) value).uniqueID() == target) {
+                            return "static " + field.name();
+                        }
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+            }
+        }
+        Instance typeMirror = referrer.referenceType().getJavaMirror();
+        if (typeMirror != null && is(referrer.vm(), typeMirror.getHandle(), target)) {
+            return "<class>";
+        }
+        return "";
+    }
+
+    // not an edge of the graph, see HeapScanner.StrongReferenceVisitor
+    private static boolean isWeak(FieldImpl field) {
+        return "Ljava/lang/ref/Reference;".equals(field.declaringType().signature())
+                && ("referent".equals(field.name()) || "discovered".equals(field.name()));
+    }
+
+    private static boolean is(VirtualMachineImpl vm, OopHandle handle, long address) {
+        return handle != null && vm.getAddressValue(handle) == address;
+    }
+
+    private static String describeRoot(VirtualMachineImpl vm, byte kind, ObjectReferenceImpl root) {
+        long address = root.uniqueID();
+        switch (kind) {
+            case HeapGraph.ROOT_THREAD:
+                return root instanceof ThreadReferenceImpl ? "thread " + ((ThreadReferenceImpl) root).name() : "thread";
+            case HeapGraph.ROOT_STACK_LOCAL:
+                for (ThreadReferenceImpl thread : vm.allThreads()) {
+                    JavaThread javaThread = thread.getJavaThread();
+                    if (javaThread == null) {
+                        continue;
+                    }
+                    try {
+                        for (JavaVFrame frame = javaThread.getLastJavaVFrameDbg();
+                             frame != null;
+                             frame = JvmUtils.getFrameJavaSender(vm, frame)) {
+                            if (holds(vm, frame, address)) {
+                                return "local in thread " + thread.name() + " at "
+                                        + CompatibilityHelper.INSTANCE.getMethodHolder(frame.getMethod()).getName().asString().replace('/', '.')
+                                        + "." + frame.getMethod().getName().asString();
+                            }
+                        }
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+                return "local";
+            case HeapGraph.ROOT_CLASS:
+            case HeapGraph.ROOT_STATIC:
+                for (ReferenceTypeImpl type : vm.bootstrapClasses()) {
+                    Instance typeMirror = type.getJavaMirror();
+                    if (typeMirror != null && vm.getAddressValue(typeMirror.getHandle()) == address) {
+                        return "class " + type.name();
+                    }
+                    for (FieldImpl field : type.fields()) {
+                        if (field.isStatic()) {
+                            try {
+                                ValueImpl value = type.getValue(field);
+                                if (value instanceof ObjectReferenceImpl && ((ObjectReferenceImpl) value).uniqueID() == address) {
+                                    return "static " + type.name() + "." + field.name();
+                                }
+                            } catch (RuntimeException ignored) {
+                            }
+                        }
+                    }
+                }
+                return "static";
+            case HeapGraph.ROOT_JNI_GLOBAL:
+                return "JNI global";
+            default:
+                return "";
+        }
+    }
+
+    private static boolean holds(VirtualMachineImpl vm, JavaVFrame frame, long address) {
+        if (holds(vm, frame.getLocals(), address) || holds(vm, frame.getExpressions(), address)) {
+            return true;
+        }
+        for (Object monitor : frame.getMonitors()) {
+            if (is(vm, ((MonitorInfo) monitor).owner(), address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean holds(VirtualMachineImpl vm, StackValueCollection values, long address) {
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i).getType() == BasicType.getTObject() && is(vm, values.get(i).getObject(), address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.Instance;
+import sun.jvm.hotspot.runtime.AddressVisitor;
+import sun.jvm.hotspot.runtime.BasicType;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.JavaVFrame;
+import sun.jvm.hotspot.runtime.MonitorInfo;
+import sun.jvm.hotspot.runtime.StackValue;
+import sun.jvm.hotspot.runtime.StackValueCollection;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Object graph of the whole heap, built from one parallel reference scan and the GC roots:
+ * thread stacks, classes of the bootstrap loader with their statics, and JNI global handles.
+ * Classes of other loaders can be unloaded, so they are not roots: the graph has the references the VM keeps
+ * for them, from each instance to the mirror of its class and from the mirror to the static values and the loader.
+ * Only strong references are edges: referents of weak, soft, phantom and final references do not keep objects alive,
+ * so they neither make objects reachable nor count in the retained sizes of the reference objects.
+ * Nodes are objects numbered in the address order, references are kept in compressed rows of node numbers,
+ * all data is in primitive arrays indexed by node.
+ */
+public class HeapGraph {
+    public static final byte ROOT_THREAD = 1;
+    public static final byte ROOT_STACK_LOCAL = 2; // local, expression or locked monitor of a java frame
+    public static final byte ROOT_CLASS = 3;
+    public static final byte ROOT_STATIC = 4;
+    public static final byte ROOT_JNI_GLOBAL = 5;
+
+    final long[] addresses;
+    final long[] sizes;
+    final int[] klassIds;
+    final long[] klassTable; // klass id -> klass address
+    final int[] edgeStarts; // node -> start of its references in edges, size + 1 elements
+    final int[] edges;
+    final int[] roots; // sorted
+    final byte[] rootKinds;
+
+    private int[] myReverseStarts;
+    private int[] myReverseEdges;
+    private DominatorTree myDominators;
+
+    HeapGraph(VirtualMachineImpl vm) {
+        List<Part> parts = vm.heapScanner().scanParallel(new HeapScanner.VisitorFactory<Part>() {
+            public Part create() {
+                return new Part();
+            }
+        });
+
+        long total = 0;
+        for (Part part : parts) {
+            total += part.count;
+        }
+        if (total >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many objects in the heap: " + total);
+        }
+        int size = (int) total;
+        addresses = new long[size];
+        sizes = new long[size];
+        klassIds = new int[size];
+        LongCounter klassIdsByAddress = new LongCounter(1024); // klass address -> id + 1
+        long[] klassTable = new long[1024];
+        int node = 0;
+        for (Part part : parts) {
+            System.arraycopy(part.addresses, 0, addresses, node, part.count);
+            System.arraycopy(part.sizes, 0, sizes, node, part.count);
+            for (int i = 0; i < part.count; i++, node++) {
+                long klass = part.klasses[i];
+                long id = klassIdsByAddress.get(klass);
+                if (id == 0) {
+                    id = klassIdsByAddress.size() + 1;
+                    klassIdsByAddress.add(klass, id);
+                    if (id > klassTable.length) {
+                        klassTable = Arrays.copyOf(klassTable, klassTable.length * 2);
+                    }
+                    klassTable[(int) id - 1] = klass;
+                }
+                klassIds[node] = (int) id - 1;
+            }
+            part.addresses = null;
+            part.klasses = null;
+            part.sizes = null;
+        }
+        this.klassTable = Arrays.copyOf(klassTable, klassIdsByAddress.size());
+        // live regions are sorted, so are the objects
+        for (int i = 1; i < size; i++) {
+            if (addresses[i] <= addresses[i - 1]) {
+                throw new IllegalStateException("Heap objects are not in the address order at " + Long.toHexString(addresses[i]));
+            }
+        }
+
+        ConcurrencyUtils.map(parts, new ConcurrencyUtils.Task<Part, Void>() {
+            public Void compute(Part part) {
+                part.resolveTargets(addresses);
+                return null;
+            }
+        }, 2);
+        ClassReferences classes = classReferences(vm, klassIdsByAddress);
+        long edgeCount = classes.count();
+        for (Part part : parts) {
+            edgeCount += part.edgeCount;
+        }
+        for (int klassId : klassIds) {
+            if (classes.klassMirrors[klassId] >= 0) {
+                edgeCount++;
+            }
+        }
+        if (edgeCount >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many references in the heap: " + edgeCount);
+        }
+        edgeStarts = new int[size + 1];
+        edges = new int[(int) edgeCount];
+        node = 0;
+        int edge = 0;
+        for (Part part : parts) {
+            int partEdge = 0;
+            for (int i = 0; i < part.count; i++, node++) {
+                edgeStarts[node] = edge;
+                System.arraycopy(part.edges, partEdge, edges, edge, part.edgeCounts[i]);
+                partEdge += part.edgeCounts[i];
+                edge += part.edgeCounts[i];
+                int mirror = classes.klassMirrors[klassIds[node]];
+                if (mirror >= 0) {
+                    edges[edge++] = mirror;
+                }
+                edge = classes.copy(node, edges, edge);
+            }
+            part.edges = null;
+        }
+        edgeStarts[size] = edge;
+
+        LongCounter roots = collectRoots(vm); // node + 1 -> root kind
+        long[] rootKeys = roots.keys();
+        Arrays.sort(rootKeys);
+        this.roots = new int[rootKeys.length];
+        rootKinds = new byte[rootKeys.length];
+        for (int i = 0; i < rootKeys.length; i++) {
+            this.roots[i] = (int) rootKeys[i] - 1;
+            rootKinds[i] = (byte) roots.get(rootKeys[i]);
+        }
+    }
+
+    /**
+     * Gets GC roots, the same object can be reported several times
+     */
+    interface RootVisitor {
+        /**
+         * @param kind one of the ROOT_* kinds
+         * @param thread index of the thread in {@link VirtualMachineImpl#allThreads()} for thread and stack roots, -1 for others
+         * @param depth number of the java frame for stack roots, -1 for others
+         */
+        void visitRoot(long address, byte kind, int thread, int depth);
+    }
+
+    private LongCounter collectRoots(VirtualMachineImpl vm) {
+        final LongCounter res = new LongCounter(1024);
+        RootVisitor visitor = new RootVisitor() {
+            public void visitRoot(long address, byte kind, int thread, int depth) {
+                addRoot(res, address, kind);
+            }
+        };
+        threadRoots(vm, visitor);
+
+        for (ReferenceTypeImpl type : vm.bootstrapClasses()) {
+            Instance typeMirror = type.getJavaMirror();
+            if (typeMirror != null) {
+                addRoot(vm, res, typeMirror.getHandle(), ROOT_CLASS);
+            }
+            for (FieldImpl field : type.fields()) {
+                if (field.isStatic()) {
+                    try {
+                        ValueImpl value = type.getValue(field);
+                        if (value instanceof ObjectReferenceImpl) {
+                            addRoot(res, ((ObjectReferenceImpl) value).uniqueID(), ROOT_STATIC);
+                        }
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+            }
+        }
+
+        jniGlobalRoots(vm, visitor);
+        return res;
+    }
+
+    private ClassReferences classReferences(VirtualMachineImpl vm, LongCounter klassIdsByAddress) {
+        ClassReferences res = new ClassReferences(klassTable.length);
+        for (ReferenceTypeImpl type : vm.allClasses()) {
+            ClassLoaderReferenceImpl loader = type.classLoader();
+            Instance typeMirror = type.getJavaMirror();
+            if (loader == null || typeMirror == null) {
+                continue;
+            }
+            int mirror = index(vm.getAddressValue(typeMirror.getHandle()));
+            if (mirror < 0) {
+                continue;
+            }
+            long klassId = klassIdsByAddress.get(vm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(type.ref())));
+            if (klassId > 0) {
+                res.klassMirrors[(int) klassId - 1] = mirror;
+            }
+            res.startMirror(mirror);
+            res.add(index(loader.uniqueID()));
+            for (FieldImpl field : type.fields()) {
+                if (field.isStatic()) {
+                    try {
+                        ValueImpl value = type.getValue(field);
+                        if (value instanceof ObjectReferenceImpl) {
+                            res.add(index(((ObjectReferenceImpl) value).uniqueID()));
+                        }
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * References of classes of other loaders than the bootstrap one, rows of node numbers per mirror
+     */
+    private static class ClassReferences {
+        final int[] klassMirrors; // klass id -> mirror node, -1 for classes of the bootstrap loader
+        private final LongCounter myStarts = new LongCounter(1024); // mirror node + 1 -> start of its row + 1
+        private int[] myRows = new int[1024]; // count of references, then the references
+        private int mySize;
+        private int myStart;
+
+        ClassReferences(int klassCount) {
+            klassMirrors = new int[klassCount];
+            Arrays.fill(klassMirrors, -1);
+        }
+
+        void startMirror(int mirror) {
+            myStart = mySize;
+            append(0);
+            myStarts.add(mirror + 1, myStart + 1);
+        }
+
+        /**
+         * Adds a reference of the last started mirror
+         */
+        void add(int node) {
+            if (node >= 0) {
+                append(node);
+                myRows[myStart]++;
+            }
+        }
+
+        private void append(int value) {
+            if (mySize == myRows.length) {
+                myRows = Arrays.copyOf(myRows, mySize * 2);
+            }
+            myRows[mySize++] = value;
+        }
+
+        /**
+         * @return the number of references of all mirrors
+         */
+        long count() {
+            return mySize - myStarts.size();
+        }
+
+        /**
+         * Copies references of the node if it is a mirror
+         * @return the position after the copied references
+         */
+        int copy(int node, int[] edges, int edge) {
+            int start = (int) myStarts.get(node + 1) - 1;
+            if (start < 0) {
+                return edge;
+            }
+            int count = myRows[start];
+            System.arraycopy(myRows, start + 1, edges, edge, count);
+            return edge + count;
+        }
+    }
+
+    /**
+     * Thread objects and references from their java frames
+     */
+    static void threadRoots(VirtualMachineImpl vm, RootVisitor visitor) {
+        List<ThreadReferenceImpl> threads = vm.allThreads();
+        for (int i = 0; i < threads.size(); i++) {
+            ThreadReferenceImpl thread = threads.get(i);
+            visitor.visitRoot(thread.uniqueID(), ROOT_THREAD, i, -1);
+            JavaThread javaThread = thread.getJavaThread();
+            if (javaThread == null) {
+                continue;
+            }
+            int depth = 0;
+            try {
+                for (JavaVFrame frame = javaThread.getLastJavaVFrameDbg();
+                     frame != null;
+                     frame = JvmUtils.getFrameJavaSender(vm, frame), depth++) {
+                    stackRoots(vm, visitor, frame.getLocals(), i, depth);
+                    stackRoots(vm, visitor, frame.getExpressions(), i, depth);
+                    for (Object monitor : frame.getMonitors()) {
+                        OopHandle owner = ((MonitorInfo) monitor).owner();
+                        if (owner != null) {
+                            visitor.visitRoot(vm.getAddressValue(owner), ROOT_STACK_LOCAL, i, depth);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the stack is not walkable any further
+            }
+        }
+    }
+
+    private static void stackRoots(VirtualMachineImpl vm, RootVisitor visitor, StackValueCollection values, int thread, int depth) {
+        for (int i = 0; i < values.size(); i++) {
+            StackValue value = values.get(i);
+            if (value.getType() == BasicType.getTObject()) {
+                OopHandle handle = value.getObject();
+                if (handle != null) {
+                    visitor.visitRoot(vm.getAddressValue(handle), ROOT_STACK_LOCAL, thread, depth);
+                }
+            }
+        }
+    }
+
+    static void jniGlobalRoots(final VirtualMachineImpl vm, final RootVisitor visitor) {
+        try {
+            CompatibilityHelper.INSTANCE.globalJNIHandlesDo(vm.saVM(), new AddressVisitor() {
+                public void visitAddress(Address address) {
+                    visitRoot(address.getOopHandleAt(0));
+                }
+
+                public void visitCompOopAddress(Address address) {
+                    visitRoot(address.getCompOopHandleAt(0));
+                }
+
+                private void visitRoot(OopHandle handle) {
+                    if (handle != null) {
+                        visitor.visitRoot(vm.getAddressValue(handle), ROOT_JNI_GLOBAL, -1, -1);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addRoot(VirtualMachineImpl vm, LongCounter roots, OopHandle handle, byte kind) {
+        if (handle != null) {
+            addRoot(roots, vm.getAddressValue(handle), kind);
+        }
+    }
+
+    // the first kind found is kept
+    private void addRoot(LongCounter roots, long address, byte kind) {
+        int node = index(address);
+        if (node >= 0 && !roots.contains(node + 1)) {
+            roots.add(node + 1, kind);
+        }
+    }
+
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+     * @return the node of the object, -1 if there is no object at the address
+     */
+    public int index(long address) {
+        int res = Arrays.binarySearch(addresses, address);
+        return res >= 0 ? res : -1;
+    }
+
+    public long address(int node) {
+        return addresses[node];
+    }
+
+    public long shallowSize(int node) {
+        return sizes[node];
+    }
+
+    public long klass(int node) {
+        return klassTable[klassIds[node]];
+    }
+
+    public int[] roots() {
+        return roots.clone();
+    }
+
+    /**
+     * @return one of the ROOT_* kinds, 0 if the object is not a GC root
+     */
+    public byte rootKind(int node) {
+        int index = Arrays.binarySearch(roots, node);
+        return index >= 0 ? rootKinds[index] : 0;
+    }
+
+    /**
+     * Referring objects, built on the first call
+     * @return nodes at [reverseStarts[node], reverseStarts[node + 1]) of reverseEdges()
+     */
+    synchronized int[] reverseStarts() {
+        if (myReverseStarts == null) {
+            int size = size();
+            int[] starts = new int[size + 1];
+            for (int edge : edges) {
+                starts[edge + 1]++;
+            }
+            for (int i = 0; i < size; i++) {
+                starts[i + 1] += starts[i];
+            }
+            int[] positions = Arrays.copyOf(starts, size);
+            int[] reverseEdges = new int[edges.length];
+            for (int node = 0; node < size; node++) {
+                for (int e = edgeStarts[node]; e < edgeStarts[node + 1]; e++) {
+                    reverseEdges[positions[edges[e]]++] = node;
+                }
+            }
+            myReverseStarts = starts;
+            myReverseEdges = reverseEdges;
+        }
+        return myReverseStarts;
+    }
+
+    synchronized int[] reverseEdges() {
+        reverseStarts();
+        return myReverseEdges;
+    }
+
+    /**
+     * Breadth first search over the referring objects, stops at the first GC root found
+     * @return the shortest strong path from a GC root to the object, empty if the object is not strongly reachable
+     */
+    public int[] pathToRoot(int node) {
+        int[] reverseStarts = reverseStarts();
+        int[] reverseEdges = reverseEdges();
+        LongCounter next = new LongCounter(64); // node + 1 -> next node on the path to the object + 1
+        int[] queue = new int[64];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = node;
+        next.add(node + 1, node + 1);
+        while (head < tail) {
+            int current = queue[head++];
+            if (Arrays.binarySearch(roots, current) >= 0) {
+                int length = 1;
+                for (int n = current; n != node; n = (int) next.get(n + 1) - 1) {
+                    length++;
+                }
+                int[] res = new int[length];
+                res[0] = current;
+                for (int i = 1; i < length; i++) {
+                    res[i] = (int) next.get(res[i - 1] + 1) - 1;
+                }
+                return res;
+            }
+            for (int e = reverseStarts[current]; e < reverseStarts[current + 1]; e++) {
+                int referrer = reverseEdges[e];
+                if (!next.contains(referrer + 1)) {
+                    next.add(referrer + 1, current + 1);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = referrer;
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    public synchronized DominatorTree dominators() {
+        if (myDominators == null) {
+            myDominators = new DominatorTree(this);
+        }
+        return myDominators;
+    }
+
+    // objects and references of one part of the heap, called on pool threads
+    private static class Part implements HeapScanner.StrongReferenceVisitor {
+        private long[] addresses = new long[1024];
+        private long[] klasses = new long[1024];
+        private long[] sizes = new long[1024];
+        private int[] edgeCounts = new int[1024];
+        private int count;
+        private long[] targets = new long[4096];
+        private int[] edges;
+        private int edgeCount;
+
+        public boolean visit(long address, long klass, long size) {
+            if (count == addresses.length) {
+                int capacity = count * 2;
+                addresses = Arrays.copyOf(addresses, capacity);
+                klasses = Arrays.copyOf(klasses, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                edgeCounts = Arrays.copyOf(edgeCounts, capacity);
+            }
+            addresses[count] = address;
+            klasses[count] = klass;
+            sizes[count] = size;
+            count++;
+            return false;
+        }
+
+        public boolean visitReference(long address, long target) {
+            if (edgeCount == targets.length) {
+                targets = Arrays.copyOf(targets, edgeCount * 2);
+            }
+            targets[edgeCount++] = target;
+            edgeCounts[count - 1]++;
+            return false;
+        }
+
+        // references to addresses which are not objects (outside of the scanned regions) are dropped
+        void resolveTargets(long[] nodes) {
+            edges = new int[edgeCount];
+            int source = 0;
+            int result = 0;
+            for (int i = 0; i < count; i++) {
+                int kept = 0;
+                for (int j = 0; j < edgeCounts[i]; j++) {
+                    int node = Arrays.binarySearch(nodes, targets[source++]);
+                    if (node >= 0) {
+                        edges[result++] = node;
+                        kept++;
+                    }
+                }
+                edgeCounts[i] = kept;
+            }
+            edgeCount = result;
+            targets = null;
+        }
+    }
+}
@@ -0,0 +1,779 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.Debugger;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.debugger.ReadResult;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.DefaultOopVisitor;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.NarrowOopField;
+import sun.jvm.hotspot.oops.ObjArrayKlass;
+import sun.jvm.hotspot.oops.ObjectHeap;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.TypeArray;
+import sun.jvm.hotspot.runtime.VM;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Walks the heap reading its memory in large chunks and decoding object headers directly:
+ * no {@link Oop} is created per object, visitors get (address, klass address, size) tuples.
+ * Live regions are walked independently, so the heap can be scanned by several threads at once.
+ * Falls back to {@link ObjectHeap#iterate} where objects can not be decoded without SA
+ * (klasses in the perm gen, CMS free lists).
+ */
+public class HeapScanner {
+    public interface ObjectVisitor {
+        /**
+         * @param klass address of the klass, as {@link Compatibility#getAddress(Klass)}
+         * @param size object size in bytes
+         * @return true to stop the scan
+         */
+        boolean visit(long address, long klass, long size);
+    }
+
+    /**
+     * Also gets the outgoing references of objects, read with precomputed per-klass oop offsets
+     */
+    public interface ReferenceVisitor extends ObjectVisitor {
+        /**
+         * Called after {@link #visit} for every non-null reference of the object
+         * @param address the referring object
+         * @param target the referenced object
+         * @return true to skip the remaining references of the object
+         */
+        boolean visitReference(long address, long target);
+    }
+
+    /**
+     * Gets only the references which keep objects alive:
+     * referent and discovered of {@code java.lang.ref.Reference} instances are skipped, as the GC does
+     */
+    public interface StrongReferenceVisitor extends ReferenceVisitor {
+    }
+
+    /**
+     * Also gets the memory of objects, decoded in the target byte order
+     */
+    public interface ContentVisitor extends ObjectVisitor {
+        /**
+         * Called after {@link #visit}
+         * @return false to skip the memory of the object
+         */
+        boolean wantsContent();
+
+        /**
+         * Called after {@link #visit} with [start, end) of the object readable through memory,
+         * objects larger than a chunk come in several consecutive pieces, the first one starts at the object address
+         * @return true to stop the scan
+         */
+        boolean visitContent(long address, Memory memory, long start, long end);
+    }
+
+    /**
+     * Heap memory loaded by the scanner, addresses are absolute
+     */
+    public interface Memory {
+        byte getByte(long address);
+
+        short getShort(long address);
+
+        int getInt(long address);
+
+        long getLong(long address);
+
+        /**
+         * @return the decoded reference at the address, 0 for null
+         */
+        long getOop(long address);
+    }
+
+    public interface VisitorFactory<V extends ObjectVisitor> {
+        V create();
+    }
+
+    /**
+     * Collects addresses of accepted objects in a part of the heap, mirrors are created after the scan
+     */
+    abstract static class AddressCollector implements ObjectVisitor {
+        private final long myMax;
+        private long[] myAddresses = new long[16];
+        private int mySize;
+
+        /**
+         * @param max maximum number of objects to collect, 0 for all
+         */
+        AddressCollector(long max) {
+            myMax = max;
+        }
+
+        /**
+         * Called on pool threads
+         */
+        abstract boolean accept(long address, long klass);
+
+        public boolean visit(long address, long klass, long size) {
+            if (isFull()) {
+                return true;
+            }
+            if (accept(address, klass)) {
+                add(address);
+            }
+            return false;
+        }
+
+        void add(long address) {
+            if (mySize == myAddresses.length) {
+                myAddresses = Arrays.copyOf(myAddresses, mySize * 2);
+            }
+            myAddresses[mySize++] = address;
+        }
+
+        boolean isFull() {
+            return myMax > 0 && mySize >= myMax;
+        }
+
+        /**
+         * @return the last collected address, 0 if none
+         */
+        long last() {
+            return mySize > 0 ? myAddresses[mySize - 1] : 0;
+        }
+
+        /**
+         * @return mirrors of the objects collected by all parts, in the heap order
+         */
+        static List<ObjectReferenceImpl> mirrors(VirtualMachineImpl vm, List<? extends AddressCollector> parts, long max) {
+            List<ObjectReferenceImpl> res = new ArrayList<ObjectReferenceImpl>(0);
+            for (AddressCollector part : parts) {
+                for (int i = 0; i < part.mySize; i++) {
+                    if (max > 0 && res.size() >= max) {
+                        return res;
+                    }
+                    res.add(vm.objectMirror(part.myAddresses[i]));
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Location and encoding of the klass word in object headers, encoding of references
+     */
+    public static class Layout {
+        final long klassOffset;
+        final boolean compressedKlass;
+        final long narrowKlassBase;
+        final int narrowKlassShift;
+        final boolean compressedOops;
+        final long narrowOopBase;
+        final int narrowOopShift;
+
+        public Layout(long klassOffset, boolean compressedKlass, long narrowKlassBase, int narrowKlassShift,
+                      boolean compressedOops, long narrowOopBase, int narrowOopShift) {
+            this.klassOffset = klassOffset;
+            this.compressedKlass = compressedKlass;
+            this.narrowKlassBase = narrowKlassBase;
+            this.narrowKlassShift = narrowKlassShift;
+            this.compressedOops = compressedOops;
+            this.narrowOopBase = narrowOopBase;
+            this.narrowOopShift = narrowOopShift;
+        }
+    }
+
+    /**
+     * What the scanner needs to know about a klass, resolved through SA once
+     */
+    private static class KlassInfo {
+        final int layoutHelper;
+        // offsets of reference fields of instances, sorted, null for arrays
+        final int[] oopOffsets;
+        // the same without the referent and discovered fields for subclasses of java.lang.ref.Reference
+        final int[] strongOopOffsets;
+        final boolean objArray;
+
+        KlassInfo(int layoutHelper, int[] oopOffsets, int[] strongOopOffsets, boolean objArray) {
+            this.layoutHelper = layoutHelper;
+            this.oopOffsets = oopOffsets;
+            this.strongOopOffsets = strongOopOffsets;
+            this.objArray = objArray;
+        }
+
+        int[] oopOffsets(ReferenceVisitor visitor) {
+            return visitor instanceof StrongReferenceVisitor ? strongOopOffsets : oopOffsets;
+        }
+    }
+
+    private static final String REFERENCE_CLASS = "java/lang/ref/Reference";
+
+    // refer to Klass::layout_helper_* in klass.hpp
+    private static final int LH_INSTANCE_SLOW_PATH_BIT = 0x01;
+    private static final int LH_HEADER_SIZE_SHIFT = 16;
+    private static final int LH_HEADER_SIZE_MASK = 0xFF;
+    private static final int LH_LOG2_ELEMENT_SIZE_MASK = 0x3F;
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    // random reads are mostly of a few fields of one object
+    private static final int RANDOM_READ_SIZE = 256;
+    // more parts than threads to even out regions with few live objects
+    private static final int PARTS_PER_THREAD = 4;
+
+    private final VirtualMachineImpl myVm;
+    private final Debugger myDebugger;
+    private final Layout myLayout; // null if objects are read through SA
+    private final long[] myRegions; // start, end pairs of TLAB-safe live regions
+    private final List<long[]> myParts; // consecutive regions of about the same total size
+    private final int myAddressSize;
+    private final int myKlassSize;
+    private final int myOopSize;
+    private final long myLengthOffset;
+    private final long myMinAlignment;
+    private final boolean myBigEndian;
+
+    // klass address -> klass info, shared by all scanning threads, each thread keeps its own primitive table
+    private final ConcurrentHashMap<Long, KlassInfo> myKlassInfos = new ConcurrentHashMap<Long, KlassInfo>();
+
+    HeapScanner(VirtualMachineImpl vm) {
+        myVm = vm;
+        VM saVM = vm.saVM();
+        myDebugger = saVM.getDebugger();
+        myAddressSize = (int) saVM.getAddressSize();
+        myMinAlignment = saVM.getMinObjAlignmentInBytes();
+        myBigEndian = myDebugger.getMachineDescription().isBigEndian();
+        Layout layout = CompatibilityHelper.INSTANCE.getHeapLayout(saVM);
+        long[] regions = null;
+        if (layout != null && !isConcMarkSweep(saVM)) {
+            regions = collectLiveRegions(vm);
+        }
+        myRegions = regions;
+        myParts = regions != null ? split(regions, ConcurrencyUtils.THREADS * PARTS_PER_THREAD) : null;
+        myLayout = regions != null ? layout : null;
+        myKlassSize = myLayout != null && myLayout.compressedKlass ? 4 : myAddressSize;
+        myOopSize = myLayout != null && myLayout.compressedOops ? 4 : myAddressSize;
+        // array length is in the gap after the compressed klass, or after the klass
+        myLengthOffset = myLayout != null ? myLayout.klassOffset + myKlassSize : 0;
+    }
+
+    // CMS old generation has free chunks between objects, only SA knows how to skip them
+    private static boolean isConcMarkSweep(VM saVM) {
+        VM.Flag flag = saVM.getCommandLineFlag("UseConcMarkSweepGC");
+        return flag != null && flag.getBool();
+    }
+
+    // ObjectHeap knows how to split spaces around TLABs, but does not expose it
+    // @return null if it is not available, objects are then read through ObjectHeap.iterate
+    private static long[] collectLiveRegions(VirtualMachineImpl vm) {
+        try {
+            Method method = ObjectHeap.class.getDeclaredMethod("collectLiveRegions");
+            method.setAccessible(true);
+            List<?> regions = (List<?>) method.invoke(vm.saObjectHeap());
+            long[] res = new long[regions.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = vm.getAddressValue((Address) regions.get(i));
+            }
+            return res;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static List<long[]> split(long[] regions, int count) {
+        long total = 0;
+        for (int i = 0; i < regions.length; i += 2) {
+            total += regions[i + 1] - regions[i];
+        }
+        long partSize = Math.max(1, total / count);
+        List<long[]> res = new ArrayList<long[]>(count);
+        int partStart = 0;
+        long size = 0;
+        for (int i = 0; i < regions.length; i += 2) {
+            size += regions[i + 1] - regions[i];
+            if (size >= partSize || i + 2 == regions.length) {
+                long[] part = new long[i + 2 - partStart];
+                System.arraycopy(regions, partStart, part, 0, part.length);
+                res.add(part);
+                partStart = i + 2;
+                size = 0;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return false if objects are read through SA, {@link ContentVisitor}s then get no content
+     */
+    boolean readsMemory() {
+        return myLayout != null;
+    }
+
+    int oopSize() {
+        return myOopSize;
+    }
+
+    long lengthOffset() {
+        return myLengthOffset;
+    }
+
+    static int arrayHeaderSize(Klass klass) {
+        return (klass.getLayoutHelper() >> LH_HEADER_SIZE_SHIFT) & LH_HEADER_SIZE_MASK;
+    }
+
+    /**
+     * Can only be used if {@link #readsMemory()}
+     */
+    RandomReader randomReader() {
+        return new RandomReader();
+    }
+
+    /**
+     * Reads objects at any address, to follow references out of the scanned part: each thread needs its own
+     */
+    class RandomReader {
+        private final Cursor myCursor = new Cursor();
+
+        /**
+         * @return memory with [address, address + length) loaded, null if it can not be read
+         */
+        Memory load(long address, long length) {
+            return myCursor.load(address, length, address + Math.max(length, RANDOM_READ_SIZE)) ? myCursor : null;
+        }
+
+        /**
+         * @return the klass address of the object, 0 if it can not be read
+         */
+        long klass(long address) {
+            return load(address, myLayout.klassOffset + myKlassSize) != null ? myCursor.getKlass(address) : 0;
+        }
+    }
+
+    public void scan(final ObjectVisitor visitor) {
+        if (myLayout == null) {
+            myVm.saObjectHeap().iterate(new DefaultHeapVisitor() {
+                public boolean doObj(Oop oop) {
+                    long address = myVm.getAddressValue(oop.getHandle());
+                    if (visitor.visit(address,
+                            myVm.getAddressValue(CompatibilityHelper.INSTANCE.getKlassAddress(oop)),
+                            oop.getObjectSize())) {
+                        return true;
+                    }
+                    if (visitor instanceof ReferenceVisitor) {
+                        visitReferences(oop, address, (ReferenceVisitor) visitor);
+                    }
+                    return false;
+                }
+            });
+            return;
+        }
+        new Cursor().scan(myRegions, visitor);
+    }
+
+    // references of objects read through SA
+    private void visitReferences(Oop oop, final long address, final ReferenceVisitor visitor) {
+        if (oop instanceof TypeArray) {
+            return;
+        }
+        Klass klass = oop.getKlass();
+        final int[] offsets = klass instanceof InstanceKlass ? klassInfo((InstanceKlass) klass).oopOffsets(visitor) : null;
+        oop.iterate(new DefaultOopVisitor() {
+            private boolean mySkip;
+
+            @Override
+            public void doOop(OopField field, boolean isVMField) {
+                if (!mySkip && (offsets == null || Arrays.binarySearch(offsets, (int) field.getOffset()) >= 0)) {
+                    OopHandle valueHandle = field.getValueAsOopHandle(getObj());
+                    if (valueHandle != null) {
+                        mySkip = visitor.visitReference(address, myVm.getAddressValue(valueHandle));
+                    }
+                }
+            }
+
+            @Override
+            public void doOop(NarrowOopField field, boolean isVMField) {
+                doOop((OopField) field, isVMField);
+            }
+        }, false);
+    }
+
+    /**
+     * Scans parts of the heap in parallel, each part with its own visitor.
+     * Visitors are called on pool threads, they must not create mirrors nor call SA (see {@link ConcurrencyUtils}),
+     * stopping a visitor stops only its part. If objects are read through SA, the only visitor runs on the calling thread.
+     * @return visitors of all parts in the heap order, for merging
+     */
+    public <V extends ObjectVisitor> List<V> scanParallel(final VisitorFactory<V> factory) {
+        if (myLayout == null) {
+            V visitor = factory.create();
+            scan(visitor);
+            return Collections.singletonList(visitor);
+        }
+        return ConcurrencyUtils.map(myParts, new ConcurrencyUtils.Task<long[], V>() {
+            public V compute(long[] part) {
+                V visitor = factory.create();
+                new Cursor().scan(part, visitor);
+                return visitor;
+            }
+        }, 2);
+    }
+
+    private long align(long size) {
+        return (size + myMinAlignment - 1) & -myMinAlignment;
+    }
+
+    // slow path: instances with sizes not in the layout helper, java.lang.Class mirrors for example
+    private long objectSizeFromOop(long address) {
+        synchronized (ConcurrencyUtils.SA_LOCK) {
+            try {
+                return newOop(address).getObjectSize();
+            } catch (RuntimeException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads an object through SA, on pool threads only holding {@link ConcurrencyUtils#SA_LOCK}
+     */
+    Oop newOop(long address) {
+        return myVm.saObjectHeap().newOop(myDebugger.parseAddress("0x" + Long.toHexString(address)).addOffsetToAsOopHandle(0));
+    }
+
+    /**
+     * Checks the klass of the first seen object through SA, once per klass for all scanning threads
+     * @return null if the address is not an object
+     */
+    private KlassInfo resolveKlass(long klass, long address) {
+        KlassInfo res = myKlassInfos.get(klass);
+        if (res != null) {
+            return res;
+        }
+        synchronized (ConcurrencyUtils.SA_LOCK) {
+            res = myKlassInfos.get(klass);
+            if (res != null) {
+                return res;
+            }
+            Klass saKlass;
+            try {
+                saKlass = newOop(address).getKlass();
+            } catch (RuntimeException e) {
+                return null;
+            }
+            if (saKlass == null || myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(saKlass)) != klass) {
+                return null;
+            }
+            if (saKlass instanceof InstanceKlass) {
+                return klassInfo((InstanceKlass) saKlass);
+            }
+            res = new KlassInfo(saKlass.getLayoutHelper(), null, null, saKlass instanceof ObjArrayKlass);
+            myKlassInfos.put(klass, res);
+            return res;
+        }
+    }
+
+    // on the calling thread or holding SA_LOCK
+    private KlassInfo klassInfo(InstanceKlass saKlass) {
+        long klass = myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(saKlass));
+        KlassInfo res = myKlassInfos.get(klass);
+        if (res == null) {
+            // the same offsets as in the klass oop maps, which SA does not expose
+            List<Integer> offsets = new ArrayList<Integer>();
+            List<Integer> weakOffsets = new ArrayList<Integer>();
+            for (Klass k = saKlass; k instanceof InstanceKlass; k = k.getSuper()) {
+                boolean reference = REFERENCE_CLASS.equals(k.getName().asString());
+                for (Object o : ((InstanceKlass) k).getImmediateFields()) {
+                    Field field = (Field) o;
+                    if (!field.isStatic() && field.getFieldType().isOop()) {
+                        offsets.add((int) field.getOffset());
+                        String name = field.getID().getName();
+                        if (reference && ("referent".equals(name) || "discovered".equals(name))) {
+                            weakOffsets.add((int) field.getOffset());
+                        }
+                    }
+                }
+            }
+            int[] oopOffsets = toSortedArray(offsets);
+            offsets.removeAll(weakOffsets);
+            res = new KlassInfo(saKlass.getLayoutHelper(), oopOffsets,
+                    weakOffsets.isEmpty() ? oopOffsets : toSortedArray(offsets), false);
+            myKlassInfos.put(klass, res);
+        }
+        return res;
+    }
+
+    private static int[] toSortedArray(List<Integer> values) {
+        int[] res = new int[values.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = values.get(i);
+        }
+        Arrays.sort(res);
+        return res;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Scanning state of one thread: heap memory read in large blocks and known klasses
+     */
+    private class Cursor implements Memory {
+        private byte[] myData = new byte[0];
+        private long myStart;
+
+        // klass address -> klass info, open addressing, 0 is never a klass address
+        private long[] myKlasses = new long[256];
+        private KlassInfo[] myKlassInfos = new KlassInfo[256];
+        private int myKlassCount;
+        private int myLastIndex;
+
+        void scan(long[] regions, ObjectVisitor visitor) {
+            for (int i = 0; i < regions.length; i += 2) {
+                if (scanRegion(regions[i], regions[i + 1], visitor)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if the visitor stopped the scan
+         */
+        private boolean scanRegion(long start, long end, ObjectVisitor visitor) {
+            long address = start;
+            while (address < end) {
+                if (!load(address, myLayout.klassOffset + myKlassSize, end)) {
+                    return false;
+                }
+                long klass = getKlass(address);
+                if (klass == 0 || !lookupKlass(klass, address)) {
+                    // not an object, same as UnknownOopException in ObjectHeap: skip the rest of the region
+                    return false;
+                }
+                KlassInfo info = myKlassInfos[myLastIndex];
+                int layoutHelper = info.layoutHelper;
+                long size;
+                if (layoutHelper > 0 && (layoutHelper & LH_INSTANCE_SLOW_PATH_BIT) == 0) {
+                    size = layoutHelper;
+                } else if (layoutHelper < 0) {
+                    if (!load(address, myLengthOffset + 4, end)) {
+                        return false;
+                    }
+                    long length = getInt(address + myLengthOffset) & 0xFFFFFFFFL;
+                    long headerSize = (layoutHelper >> LH_HEADER_SIZE_SHIFT) & LH_HEADER_SIZE_MASK;
+                    size = align(headerSize + (length << (layoutHelper & LH_LOG2_ELEMENT_SIZE_MASK)));
+                } else {
+                    size = objectSizeFromOop(address);
+                }
+                if (size <= 0) {
+                    return false;
+                }
+                if (visitor.visit(address, klass, size)) {
+                    return true;
+                }
+                if (visitor instanceof ReferenceVisitor && !visitReferences(address, info, end, (ReferenceVisitor) visitor)) {
+                    return false;
+                }
+                if (visitor instanceof ContentVisitor && ((ContentVisitor) visitor).wantsContent()) {
+                    for (long piece = address; piece < address + size; piece += CHUNK_SIZE) {
+                        long pieceEnd = Math.min(piece + CHUNK_SIZE, address + size);
+                        if (!load(piece, pieceEnd - piece, end)) {
+                            return false;
+                        }
+                        if (((ContentVisitor) visitor).visitContent(address, this, piece, pieceEnd)) {
+                            return true;
+                        }
+                    }
+                }
+                address += size;
+            }
+            return false;
+        }
+
+        /**
+         * Finds the klass in the local table, adding it if needed, the slot is left in myLastIndex
+         * @return false if the klass is not valid
+         */
+        private boolean lookupKlass(long klass, long address) {
+            int mask = myKlasses.length - 1;
+            int index = hash(klass) & mask;
+            while (myKlasses[index] != 0) {
+                if (myKlasses[index] == klass) {
+                    myLastIndex = index;
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            KlassInfo info = resolveKlass(klass, address);
+            if (info == null) {
+                return false;
+            }
+            myLastIndex = addKlass(klass, info);
+            return true;
+        }
+
+        private int addKlass(long klass, KlassInfo info) {
+            if ((myKlassCount + 1) * 2 > myKlasses.length) {
+                long[] klasses = myKlasses;
+                KlassInfo[] infos = myKlassInfos;
+                myKlasses = new long[klasses.length * 2];
+                myKlassInfos = new KlassInfo[klasses.length * 2];
+                myKlassCount = 0;
+                for (int i = 0; i < klasses.length; i++) {
+                    if (klasses[i] != 0) {
+                        addKlass(klasses[i], infos[i]);
+                    }
+                }
+            }
+            int mask = myKlasses.length - 1;
+            int index = hash(klass) & mask;
+            while (myKlasses[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            myKlasses[index] = klass;
+            myKlassInfos[index] = info;
+            myKlassCount++;
+            return index;
+        }
+
+        /**
+         * Reads references of the object at the offsets of its klass, or all elements of an object array
+         * @return false if the memory can not be read
+         */
+        private boolean visitReferences(long address, KlassInfo info, long regionEnd, ReferenceVisitor visitor) {
+            if (info.oopOffsets != null) {
+                for (int offset : info.oopOffsets(visitor)) {
+                    if (!load(address + offset, myOopSize, regionEnd)) {
+                        return false;
+                    }
+                    long target = getOop(address + offset);
+                    if (target != 0 && visitor.visitReference(address, target)) {
+                        return true;
+                    }
+                }
+            } else if (info.objArray) {
+                if (!load(address, myLengthOffset + 4, regionEnd)) {
+                    return false;
+                }
+                long length = getInt(address + myLengthOffset) & 0xFFFFFFFFL;
+                long element = address + ((info.layoutHelper >> LH_HEADER_SIZE_SHIFT) & LH_HEADER_SIZE_MASK);
+                long elementsEnd = element + length * myOopSize;
+                for (; element < elementsEnd; element += myOopSize) {
+                    if (!load(element, myOopSize, regionEnd)) {
+                        return false;
+                    }
+                    long target = getOop(element);
+                    if (target != 0 && visitor.visitReference(address, target)) {
+                        return true;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Makes sure that [address, address + length) is in the current block
+         * @return false if the memory can not be read
+         */
+        private boolean load(long address, long length, long regionEnd) {
+            if (address >= myStart && address + length <= myStart + myData.length) {
+                return true;
+            }
+            long size = Math.max(length, Math.min(CHUNK_SIZE, regionEnd - address));
+            byte[] data = read(address, size);
+            if (data == null && size > length) {
+                // the end of a large block may be not readable
+                data = read(address, length);
+            }
+            if (data == null) {
+                return false;
+            }
+            myData = data;
+            myStart = address;
+            return true;
+        }
+
+        // the only SA call of pool threads without SA_LOCK: debuggers synchronize it, decoding runs in parallel
+        private byte[] read(long address, long size) {
+            try {
+                ReadResult result = myDebugger.readBytesFromProcess(address, size);
+                byte[] data = result.getData();
+                return data != null && data.length >= size ? data : null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private long getKlass(long objectAddress) {
+            long address = objectAddress + myLayout.klassOffset;
+            if (myLayout.compressedKlass) {
+                long narrowKlass = getInt(address) & 0xFFFFFFFFL;
+                return narrowKlass == 0 ? 0 : myLayout.narrowKlassBase + (narrowKlass << myLayout.narrowKlassShift);
+            }
+            return myAddressSize == 8 ? getLong(address) : getInt(address) & 0xFFFFFFFFL;
+        }
+
+        public long getOop(long address) {
+            if (myLayout.compressedOops) {
+                long narrowOop = getInt(address) & 0xFFFFFFFFL;
+                return narrowOop == 0 ? 0 : myLayout.narrowOopBase + (narrowOop << myLayout.narrowOopShift);
+            }
+            return myAddressSize == 8 ? getLong(address) : getInt(address) & 0xFFFFFFFFL;
+        }
+
+        public byte getByte(long address) {
+            return myData[(int) (address - myStart)];
+        }
+
+        public short getShort(long address) {
+            int offset = (int) (address - myStart);
+            byte[] data = myData;
+            if (myBigEndian) {
+                return (short) ((data[offset] << 8) | (data[offset + 1] & 0xFF));
+            }
+            return (short) ((data[offset + 1] << 8) | (data[offset] & 0xFF));
+        }
+
+        public int getInt(long address) {
+            int offset = (int) (address - myStart);
+            byte[] data = myData;
+            if (myBigEndian) {
+                return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16)
+                        | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            }
+            return (data[offset + 3] << 24) | ((data[offset + 2] & 0xFF) << 16)
+                    | ((data[offset + 1] & 0xFF) << 8) | (data[offset] & 0xFF);
+        }
+
+        public long getLong(long address) {
+            long first = getInt(address) & 0xFFFFFFFFL;
+            long second = getInt(address + 4) & 0xFFFFFFFFL;
+            return myBigEndian ? (first << 32) | second : (second << 32) | first;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link HeapGraph} saved by {@link HeapSnapshotWriter}, queried without the target.
+ * Columns are read in place from a memory mapping of the file, only the class table is loaded.
+ * Does not depend on SA, so it can be used in any JVM.
+ * <p>
+ * File format: header (magic, format version, numbers of objects, references, roots and classes), then columns:
+ * object addresses (sorted) and shallow sizes as longs; klass ids, reference rows (row starts and referenced objects),
+ * referrer rows in the same form and GC roots (sorted) as ints; root kinds as bytes;
+ * then the class table of (klass address, instance count, total shallow size, name).
+ * Objects are numbered in the address order, references and roots are object numbers.
+ * References are the strong ones of the graph: version 1 files also had the referents of java.lang.ref.Reference
+ * instances, which made weakly reachable objects look reachable, they are not read.
+ */
+public class HeapSnapshot {
+    static final int MAGIC = 0x53414a48; // SAJH
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 24;
+
+    public static class ClassEntry {
+        public final int id;
+        public final long klass;
+        public final String name;
+        public final long count;
+        public final long size;
+
+        private ClassEntry(int id, long klass, String name, long count, long size) {
+            this.id = id;
+            this.klass = klass;
+            this.name = name;
+            this.count = count;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<ClassEntry> BY_SIZE = new Comparator<ClassEntry>() {
+        public int compare(ClassEntry e1, ClassEntry e2) {
+            if (e1.size != e2.size) {
+                return e1.size > e2.size ? -1 : 1;
+            }
+            return e1.count > e2.count ? -1 : e1.count < e2.count ? 1 : 0;
+        }
+    };
+
+    private static final String[] ROOT_KINDS = {"", "thread", "stack local", "class", "static field", "JNI global"};
+
+    private final int mySize;
+    private final Column myAddresses;
+    private final Column mySizes;
+    private final Column myKlassIds;
+    private final Column myEdgeStarts;
+    private final Column myEdges;
+    private final Column myReverseStarts;
+    private final Column myReverseEdges;
+    private final int myRootCount;
+    private final Column myRoots;
+    private final Column myRootKinds;
+    private final List<ClassEntry> myClasses;
+
+    private HeapSnapshot(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Not a heap snapshot: the file is too short");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a heap snapshot");
+        }
+        int version = header.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported heap snapshot version " + version);
+        }
+        mySize = header.getInt();
+        int edgeCount = header.getInt();
+        myRootCount = header.getInt();
+        int classCount = header.getInt();
+
+        long offset = HEADER_SIZE;
+        myAddresses = new Column(channel, offset, 8L * mySize);
+        offset += 8L * mySize;
+        mySizes = new Column(channel, offset, 8L * mySize);
+        offset += 8L * mySize;
+        myKlassIds = new Column(channel, offset, 4L * mySize);
+        offset += 4L * mySize;
+        myEdgeStarts = new Column(channel, offset, 4L * (mySize + 1));
+        offset += 4L * (mySize + 1);
+        myEdges = new Column(channel, offset, 4L * edgeCount);
+        offset += 4L * edgeCount;
+        myReverseStarts = new Column(channel, offset, 4L * (mySize + 1));
+        offset += 4L * (mySize + 1);
+        myReverseEdges = new Column(channel, offset, 4L * edgeCount);
+        offset += 4L * edgeCount;
+        myRoots = new Column(channel, offset, 4L * myRootCount);
+        offset += 4L * myRootCount;
+        myRootKinds = new Column(channel, offset, myRootCount);
+        offset += myRootCount;
+
+        channel.position(offset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        List<ClassEntry> classes = new ArrayList<ClassEntry>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            long klass = in.readLong();
+            long count = in.readLong();
+            long size = in.readLong();
+            classes.add(new ClassEntry(i, klass, in.readUTF(), count, size));
+        }
+        myClasses = Collections.unmodifiableList(classes);
+    }
+
+    public static HeapSnapshot open(File file) throws IOException {
+        // mappings stay valid after the file is closed
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return new HeapSnapshot(randomAccessFile.getChannel());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int size() {
+        return mySize;
+    }
+
+    /**
+     * @return classes by id
+     */
+    public List<ClassEntry> classes() {
+        return myClasses;
+    }
+
+    /**
+     * @param max maximum number of entries, 0 for all
+     * @return classes with instances, sorted by the total shallow size, largest first
+     */
+    public List<ClassEntry> histogram(int max) {
+        List<ClassEntry> res = new ArrayList<ClassEntry>();
+        for (ClassEntry entry : myClasses) {
+            if (entry.count > 0) {
+                res.add(entry);
+            }
+        }
+        Collections.sort(res, BY_SIZE);
+        return max > 0 && res.size() > max ? res.subList(0, max) : res;
+    }
+
+    /**
+     * @param name class name, as in {@link ClassEntry#name}
+     * @return instances of all classes with the name (loaded by different loaders), in the address order
+     */
+    public int[] instances(String name) {
+        boolean[] matching = new boolean[myClasses.size()];
+        long count = 0;
+        for (ClassEntry entry : myClasses) {
+            if (entry.name.equals(name)) {
+                matching[entry.id] = true;
+                count += entry.count;
+            }
+        }
+        int[] res = new int[(int) count];
+        int found = 0;
+        for (int node = 0; node < mySize && found < res.length; node++) {
+            if (matching[myKlassIds.getInt(node)]) {
+                res[found++] = node;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the node of the object, -1 if there is no object at the address
+     */
+    public int index(long address) {
+        int low = 0;
+        int high = mySize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = myAddresses.getLong(middle);
+            if (value < address) {
+                low = middle + 1;
+            } else if (value > address) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public long address(int node) {
+        return myAddresses.getLong(node);
+    }
+
+    public long shallowSize(int node) {
+        return mySizes.getLong(node);
+    }
+
+    public ClassEntry classOf(int node) {
+        return myClasses.get(myKlassIds.getInt(node));
+    }
+
+    public int[] references(int node) {
+        return row(myEdgeStarts, myEdges, node);
+    }
+
+    public int[] referrers(int node) {
+        return row(myReverseStarts, myReverseEdges, node);
+    }
+
+    private static int[] row(Column starts, Column edges, int node) {
+        int start = starts.getInt(node);
+        int[] res = new int[starts.getInt(node + 1) - start];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = edges.getInt(start + i);
+        }
+        return res;
+    }
+
+    /**
+     * @return one of the HeapGraph.ROOT_* kinds, 0 if the object is not a GC root
+     */
+    public byte rootKind(int node) {
+        int low = 0;
+        int high = myRootCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = myRoots.getInt(middle);
+            if (value < node) {
+                low = middle + 1;
+            } else if (value > node) {
+                high = middle - 1;
+            } else {
+                return myRootKinds.getByte(middle);
+            }
+        }
+        return 0;
+    }
+
+    public static String rootKindName(byte kind) {
+        return kind > 0 && kind < ROOT_KINDS.length ? ROOT_KINDS[kind] : "";
+    }
+
+    /**
+     * Breadth first search over the referring objects, as {@link HeapGraph#pathToRoot}
+     * @return the shortest strong path from a GC root to the object, empty if the object is not strongly reachable
+     */
+    public int[] pathToRoot(int node) {
+        LongCounter next = new LongCounter(64); // node + 1 -> next node on the path to the object + 1
+        int[] queue = new int[64];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = node;
+        next.add(node + 1, node + 1);
+        while (head < tail) {
+            int current = queue[head++];
+            if (rootKind(current) != 0) {
+                int length = 1;
+                for (int n = current; n != node; n = (int) next.get(n + 1) - 1) {
+                    length++;
+                }
+                int[] res = new int[length];
+                res[0] = current;
+                for (int i = 1; i < length; i++) {
+                    res[i] = (int) next.get(res[i - 1] + 1) - 1;
+                }
+                return res;
+            }
+            int end = myReverseStarts.getInt(current + 1);
+            for (int e = myReverseStarts.getInt(current); e < end; e++) {
+                int referrer = myReverseEdges.getInt(e);
+                if (!next.contains(referrer + 1)) {
+                    next.add(referrer + 1, current + 1);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = referrer;
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * Part of the file mapped in windows, a single mapping is limited to 2 GB
+     */
+    private static class Column {
+        private static final int WINDOW_SHIFT = 30;
+        private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+        private final MappedByteBuffer[] myWindows;
+
+        Column(FileChannel channel, long offset, long length) throws IOException {
+            myWindows = new MappedByteBuffer[(int) ((length + WINDOW_MASK) >>> WINDOW_SHIFT)];
+            for (int i = 0; i < myWindows.length; i++) {
+                long start = (long) i << WINDOW_SHIFT;
+                myWindows[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(WINDOW_MASK + 1, length - start));
+            }
+        }
+
+        long getLong(long index) {
+            long position = index << 3;
+            return myWindows[(int) (position >>> WINDOW_SHIFT)].getLong((int) (position & WINDOW_MASK));
+        }
+
+        int getInt(long index) {
+            long position = index << 2;
+            return myWindows[(int) (position >>> WINDOW_SHIFT)].getInt((int) (position & WINDOW_MASK));
+        }
+
+        byte getByte(long index) {
+            return myWindows[(int) (index >>> WINDOW_SHIFT)].get((int) (index & WINDOW_MASK));
+        }
+    }
+}
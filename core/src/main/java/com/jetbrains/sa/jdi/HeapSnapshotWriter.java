@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Saves the {@link HeapGraph} of the target as a {@link HeapSnapshot} file, the columns are the graph arrays as is:
+ * only strong references are written, so referrers and paths of offline queries do not go through weak references.
+ * Class names come from the reference type mirrors, instance counts and sizes per class are precomputed.
+ */
+public class HeapSnapshotWriter {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // do not allow instance creation
+    private HeapSnapshotWriter() {
+    }
+
+    public static void write(VirtualMachineImpl vm, File file) throws IOException {
+        HeapGraph graph = vm.heapGraph();
+        int[] reverseStarts = graph.reverseStarts();
+        int[] reverseEdges = graph.reverseEdges();
+        long[] counts = new long[graph.klassTable.length];
+        long[] sizes = new long[graph.klassTable.length];
+        for (int node = 0; node < graph.size(); node++) {
+            counts[graph.klassIds[node]]++;
+            sizes[graph.klassIds[node]] += graph.sizes[node];
+        }
+        Map<Long, ReferenceTypeImpl> types = new HashMap<Long, ReferenceTypeImpl>();
+        for (ReferenceTypeImpl type : vm.allClasses()) {
+            types.put(type.uniqueID(), type);
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(HeapSnapshot.MAGIC)
+                    .putInt(HeapSnapshot.FORMAT_VERSION)
+                    .putInt(graph.size())
+                    .putInt(graph.edges.length)
+                    .putInt(graph.roots.length)
+                    .putInt(graph.klassTable.length);
+            writeLongs(channel, buffer, graph.addresses);
+            writeLongs(channel, buffer, graph.sizes);
+            writeInts(channel, buffer, graph.klassIds);
+            writeInts(channel, buffer, graph.edgeStarts);
+            writeInts(channel, buffer, graph.edges);
+            writeInts(channel, buffer, reverseStarts);
+            writeInts(channel, buffer, reverseEdges);
+            writeInts(channel, buffer, graph.roots);
+            for (byte kind : graph.rootKinds) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                buffer.put(kind);
+            }
+            flush(channel, buffer);
+
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (int i = 0; i < graph.klassTable.length; i++) {
+                long klass = graph.klassTable[i];
+                ReferenceTypeImpl type = types.get(klass);
+                data.writeLong(klass);
+                data.writeLong(counts[i]);
+                data.writeLong(sizes[i]);
+                data.writeUTF(type != null ? type.name().replace('/', '.') : "<unknown klass 0x" + Long.toHexString(klass) + ">");
+            }
+            data.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, long[] values) throws IOException {
+        for (int offset = 0; offset < values.length; ) {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer);
+            }
+            int length = Math.min(buffer.remaining() / 8, values.length - offset);
+            buffer.asLongBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 8);
+            offset += length;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int offset = 0; offset < values.length; ) {
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer);
+            }
+            int length = Math.min(buffer.remaining() / 4, values.length - offset);
+            buffer.asIntBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 4);
+            offset += length;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
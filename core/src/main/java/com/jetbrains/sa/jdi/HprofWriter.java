@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.BooleanField;
+import sun.jvm.hotspot.oops.ByteField;
+import sun.jvm.hotspot.oops.CharField;
+import sun.jvm.hotspot.oops.DoubleField;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.FloatField;
+import sun.jvm.hotspot.oops.IntField;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.LongField;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.ShortField;
+import sun.jvm.hotspot.utilities.HeapHprofBinWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the heap to a file in the HPROF binary format, the same as jmap -dump writes.
+ * Classes, names and static values come from the reference type mirrors, objects are written from the memory
+ * read by the parallel heap scan: each part of the heap goes into its own temporary file next to the dump,
+ * parts are appended in the heap order. Only fixed size buffers and per class tables are kept in memory.
+ */
+public class HprofWriter {
+    // record tags
+    private static final int UTF8 = 0x01;
+    private static final int LOAD_CLASS = 0x02;
+    private static final int STACK_TRACE = 0x05;
+    private static final int HEAP_DUMP_SEGMENT = 0x1C;
+    private static final int HEAP_DUMP_END = 0x2C;
+
+    // heap dump sub-record tags
+    private static final int ROOT_JNI_GLOBAL = 0x01;
+    private static final int ROOT_JAVA_FRAME = 0x03;
+    private static final int ROOT_STICKY_CLASS = 0x05;
+    private static final int ROOT_THREAD_OBJ = 0x08;
+    private static final int CLASS_DUMP = 0x20;
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int OBJ_ARRAY_DUMP = 0x22;
+    private static final int PRIM_ARRAY_DUMP = 0x23;
+
+    // basic types
+    private static final byte OBJECT = 2;
+    private static final byte BOOLEAN = 4;
+    private static final byte CHAR = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte BYTE = 8;
+    private static final byte SHORT = 9;
+    private static final byte INT = 10;
+    private static final byte LONG = 11;
+
+    // one empty trace for all objects and threads
+    private static final int STACK_TRACE_SERIAL = 1;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    // there are several parts per thread, all of them are open until the scan ends
+    private static final int PART_BUFFER_SIZE = 1 << 18;
+    // segments are split at this size, a larger array gets a segment of its own
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long MAX_SEGMENT_LENGTH = 0xFFFFFFFFL;
+
+    /**
+     * What is needed to write objects of a class
+     */
+    private static class ClassInfo {
+        final ReferenceTypeImpl type;
+        final long id; // address of the class mirror
+        final byte elementType; // 0 for instances
+        final int elementSize; // in the target memory
+        final long headerSize;
+        // instance values: fields of the class, then of its superclasses
+        final long[] offsets;
+        final byte[] types;
+        final int instanceSize; // in the dump
+
+        ClassInfo(ReferenceTypeImpl type, long id, byte elementType, int elementSize, long headerSize,
+                  long[] offsets, byte[] types, int instanceSize) {
+            this.type = type;
+            this.id = id;
+            this.elementType = elementType;
+            this.elementSize = elementSize;
+            this.headerSize = headerSize;
+            this.offsets = offsets;
+            this.types = types;
+            this.instanceSize = instanceSize;
+        }
+    }
+
+    private final VirtualMachineImpl myVm;
+    private final HeapScanner myScanner;
+    private final int myIdSize;
+    private final File myDirectory;
+
+    private final LongCounter myClassIndexes = new LongCounter(1024); // klass address -> index in myClasses + 1
+    private ClassInfo[] myClasses;
+    private final LongCounter myClassIds = new LongCounter(1024); // mirrors dumped as classes, not as instances
+    private long myJavaLangClass;
+    private final Map<String, Long> myNames = new HashMap<String, Long>(); // string -> id of its UTF8 record
+    private final List<File> myPartFiles = Collections.synchronizedList(new ArrayList<File>());
+
+    private HprofWriter(VirtualMachineImpl vm, File file) {
+        myVm = vm;
+        myScanner = vm.heapScanner();
+        myIdSize = (int) vm.saVM().getAddressSize();
+        myDirectory = file.getAbsoluteFile().getParentFile();
+    }
+
+    public static void write(VirtualMachineImpl vm, File file) throws IOException {
+        if (!vm.heapScanner().readsMemory()) {
+            // objects can only be read through SA, its writer is serial
+            new HeapHprofBinWriter().write(file.getPath());
+            return;
+        }
+        new HprofWriter(vm, file).write(file);
+    }
+
+    private void write(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            Output out = new Output(stream.getChannel(), myIdSize, BUFFER_SIZE);
+            out.bytes("JAVA PROFILE 1.0.2".getBytes("US-ASCII"));
+            out.u1(0);
+            out.u4(myIdSize);
+            out.u8(System.currentTimeMillis());
+            out.record(STACK_TRACE, 12);
+            out.u4(STACK_TRACE_SERIAL);
+            out.u4(0); // thread
+            out.u4(0); // frames
+
+            List<ReferenceTypeImpl> types = myVm.allClasses();
+            List<ClassInfo> classes = new ArrayList<ClassInfo>(types.size());
+            for (ReferenceTypeImpl type : types) {
+                Oop mirror = type.getJavaMirror();
+                if (mirror != null) {
+                    ClassInfo info = classInfo(type, myVm.getAddressValue(mirror.getHandle()));
+                    classes.add(info);
+                    myClassIndexes.add(type.uniqueID(), classes.size());
+                    myClassIds.put(info.id);
+                    if (myVm.javaLangClass.equals(type.name())) {
+                        myJavaLangClass = type.uniqueID();
+                    }
+                }
+            }
+            myClasses = classes.toArray(new ClassInfo[classes.size()]);
+
+            for (int i = 0; i < myClasses.length; i++) {
+                ReferenceTypeImpl type = myClasses[i].type;
+                // internal names as jmap writes them: java/lang/String, [I
+                long nameId = name(out, type.ref().getName().asString());
+                for (FieldImpl field : type.fields()) {
+                    name(out, field.name());
+                }
+                out.record(LOAD_CLASS, 8 + 2 * myIdSize);
+                out.u4(i + 1);
+                out.id(myClasses[i].id);
+                out.u4(STACK_TRACE_SERIAL);
+                out.id(nameId);
+            }
+
+            RootList roots = new RootList();
+            HeapGraph.threadRoots(myVm, roots);
+            HeapGraph.jniGlobalRoots(myVm, roots);
+            roots.write(out);
+            for (ClassInfo info : myClasses) {
+                writeClass(out, info);
+            }
+
+            List<PartWriter> parts = myScanner.scanParallel(new HeapScanner.VisitorFactory<PartWriter>() {
+                public PartWriter create() {
+                    return new PartWriter();
+                }
+            });
+            out.closeSegment();
+            long skipped = 0;
+            for (PartWriter part : parts) {
+                part.appendTo(out);
+                skipped += part.mySkipped;
+            }
+            out.record(HEAP_DUMP_END, 0);
+            out.flush();
+            if (skipped > 0) {
+                System.err.println("Skipped " + skipped + " objects of classes not known to the VM");
+            }
+        } finally {
+            stream.close();
+            for (File part : myPartFiles) {
+                part.delete();
+            }
+        }
+    }
+
+    private ClassInfo classInfo(ReferenceTypeImpl type, long id) {
+        if (type instanceof ArrayTypeImpl) {
+            byte elementType = type(((ArrayTypeImpl) type).componentSignature().charAt(0));
+            int elementSize = elementType == OBJECT ? myScanner.oopSize() : size(elementType, myIdSize);
+            return new ClassInfo(type, id, elementType, elementSize, HeapScanner.arrayHeaderSize(type.ref()), null, null, 0);
+        }
+        List<FieldImpl> fields = new ArrayList<FieldImpl>();
+        for (ReferenceTypeImpl t = type; t != null; t = t instanceof ClassTypeImpl ? ((ClassTypeImpl) t).superclass() : null) {
+            for (FieldImpl field : t.fields()) {
+                if (!field.isStatic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        long[] offsets = new long[fields.size()];
+        byte[] types = new byte[fields.size()];
+        int instanceSize = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = fields.get(i).ref().getOffset();
+            types[i] = type(fields.get(i).signature().charAt(0));
+            instanceSize += size(types[i], myIdSize);
+        }
+        return new ClassInfo(type, id, (byte) 0, 0, 0, offsets, types, instanceSize);
+    }
+
+    /**
+     * @return id of the UTF8 record of the string, the record is written on the first call
+     */
+    private long name(Output out, String name) throws IOException {
+        Long id = myNames.get(name);
+        if (id == null) {
+            id = (long) myNames.size() + 1;
+            myNames.put(name, id);
+            byte[] bytes = name.getBytes("UTF-8");
+            out.record(UTF8, myIdSize + bytes.length);
+            out.id(id);
+            out.bytes(bytes);
+        }
+        return id;
+    }
+
+    private long classId(Klass klass) {
+        int index = klass != null ? (int) myClassIndexes.get(ReferenceTypeImpl.uniqueID(klass, myVm)) : 0;
+        return index > 0 ? myClasses[index - 1].id : 0;
+    }
+
+    private void writeClass(Output out, ClassInfo info) throws IOException {
+        ReferenceTypeImpl type = info.type;
+        ClassLoaderReferenceImpl loader = type.classLoader();
+        if (loader == null) {
+            out.heapRecord(1 + myIdSize);
+            out.u1(ROOT_STICKY_CLASS);
+            out.id(info.id);
+        }
+
+        // static values are read before the record is started, the record is small
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(CLASS_DUMP);
+        writeId(data, info.id);
+        data.writeInt(STACK_TRACE_SERIAL);
+        writeId(data, classId(type instanceof InterfaceTypeImpl ? null : type.ref().getSuper()));
+        writeId(data, loader != null ? loader.uniqueID() : 0);
+        writeId(data, 0); // signers
+        writeId(data, 0); // protection domain
+        writeId(data, 0); // reserved
+        writeId(data, 0); // reserved
+        data.writeInt(info.instanceSize);
+        data.writeShort(0); // constant pool
+
+        List<FieldImpl> statics = new ArrayList<FieldImpl>();
+        List<FieldImpl> fields = new ArrayList<FieldImpl>();
+        for (FieldImpl field : type.fields()) {
+            (field.isStatic() ? statics : fields).add(field);
+        }
+        Oop mirror = type.getJavaMirror();
+        data.writeShort(statics.size());
+        for (FieldImpl field : statics) {
+            byte fieldType = type(field.signature().charAt(0));
+            writeId(data, myNames.get(field.name()));
+            data.writeByte(fieldType);
+            long value = readStatic(field.ref(), mirror, fieldType);
+            switch (size(fieldType, myIdSize)) {
+                case 1:
+                    data.writeByte((int) value);
+                    break;
+                case 2:
+                    data.writeShort((int) value);
+                    break;
+                case 4:
+                    data.writeInt((int) value);
+                    break;
+                default:
+                    data.writeLong(value);
+            }
+        }
+        data.writeShort(fields.size());
+        for (FieldImpl field : fields) {
+            writeId(data, myNames.get(field.name()));
+            data.writeByte(type(field.signature().charAt(0)));
+        }
+        data.flush();
+        out.heapRecord(bytes.size());
+        out.bytes(bytes.toByteArray());
+    }
+
+    private void writeId(DataOutputStream data, long id) throws IOException {
+        if (myIdSize == 8) {
+            data.writeLong(id);
+        } else {
+            data.writeInt((int) id);
+        }
+    }
+
+    /**
+     * @return the value as raw bits, 0 if it can not be read
+     */
+    private long readStatic(Field field, Oop mirror, byte type) {
+        try {
+            switch (type) {
+                case OBJECT:
+                    OopHandle handle = ((OopField) field).getValueAsOopHandle(mirror);
+                    return handle != null ? myVm.getAddressValue(handle) : 0;
+                case BOOLEAN:
+                    return ((BooleanField) field).getValue(mirror) ? 1 : 0;
+                case BYTE:
+                    return ((ByteField) field).getValue(mirror);
+                case CHAR:
+                    return ((CharField) field).getValue(mirror);
+                case SHORT:
+                    return ((ShortField) field).getValue(mirror);
+                case INT:
+                    return ((IntField) field).getValue(mirror);
+                case LONG:
+                    return ((LongField) field).getValue(mirror);
+                case FLOAT:
+                    return Float.floatToRawIntBits(((FloatField) field).getValue(mirror));
+                default:
+                    return Double.doubleToRawLongBits(((DoubleField) field).getValue(mirror));
+            }
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static long read(HeapScanner.Memory memory, long address, byte type) {
+        switch (type) {
+            case OBJECT:
+                return memory.getOop(address);
+            case BOOLEAN:
+            case BYTE:
+                return memory.getByte(address);
+            case CHAR:
+            case SHORT:
+                return memory.getShort(address);
+            case FLOAT:
+            case INT:
+                return memory.getInt(address);
+            default:
+                return memory.getLong(address);
+        }
+    }
+
+    private static byte type(char signature) {
+        switch (signature) {
+            case 'Z':
+                return BOOLEAN;
+            case 'C':
+                return CHAR;
+            case 'F':
+                return FLOAT;
+            case 'D':
+                return DOUBLE;
+            case 'B':
+                return BYTE;
+            case 'S':
+                return SHORT;
+            case 'I':
+                return INT;
+            case 'J':
+                return LONG;
+            default:
+                return OBJECT;
+        }
+    }
+
+    /**
+     * @return size of the value in the dump
+     */
+    private static int size(byte type, int idSize) {
+        switch (type) {
+            case OBJECT:
+                return idSize;
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case CHAR:
+            case SHORT:
+                return 2;
+            case FLOAT:
+            case INT:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * Writes objects of one part of the heap into a temporary file, called on pool threads
+     */
+    private class PartWriter implements HeapScanner.ContentVisitor {
+        private RandomAccessFile myFile;
+        private Output myOut;
+        private IOException myError;
+        private long mySkipped;
+        private ClassInfo myInfo; // of the current object, null if it is not written
+        private long myElements; // next array element to write
+        private long myElementsEnd;
+
+        public boolean visit(long address, long klass, long size) {
+            int index = (int) myClassIndexes.get(klass);
+            myInfo = index > 0 ? myClasses[index - 1] : null;
+            if (myInfo == null) {
+                mySkipped++;
+            } else if (klass == myJavaLangClass && myClassIds.contains(address)) {
+                myInfo = null;
+            }
+            return myError != null;
+        }
+
+        public boolean wantsContent() {
+            return myInfo != null;
+        }
+
+        public boolean visitContent(long address, HeapScanner.Memory memory, long start, long end) {
+            try {
+                if (myOut == null) {
+                    File file = File.createTempFile("sa-jdwp", ".hprof.part", myDirectory);
+                    myPartFiles.add(file);
+                    myFile = new RandomAccessFile(file, "rw");
+                    myOut = new Output(myFile.getChannel(), myIdSize, PART_BUFFER_SIZE);
+                }
+                if (start == address) {
+                    startObject(address, memory);
+                }
+                if (myInfo.elementType != 0) {
+                    long elementsEnd = Math.min(end, myElementsEnd);
+                    for (; myElements < elementsEnd; myElements += myInfo.elementSize) {
+                        myOut.value(myInfo.elementType, read(memory, myElements, myInfo.elementType));
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                myError = e;
+                return true;
+            }
+        }
+
+        // instances are written whole, for arrays only the header
+        private void startObject(long address, HeapScanner.Memory memory) throws IOException {
+            ClassInfo info = myInfo;
+            Output out = myOut;
+            if (info.elementType == 0) {
+                out.heapRecord(1 + 2 * myIdSize + 8 + info.instanceSize);
+                out.u1(INSTANCE_DUMP);
+                out.id(address);
+                out.u4(STACK_TRACE_SERIAL);
+                out.id(info.id);
+                out.u4(info.instanceSize);
+                for (int i = 0; i < info.offsets.length; i++) {
+                    out.value(info.types[i], read(memory, address + info.offsets[i], info.types[i]));
+                }
+                return;
+            }
+            boolean objArray = info.elementType == OBJECT;
+            int elementSize = size(info.elementType, myIdSize);
+            long headerLength = objArray ? 1 + 2 * myIdSize + 8 : 1 + myIdSize + 9;
+            long length = memory.getInt(address + myScanner.lengthOffset()) & 0xFFFFFFFFL;
+            // as in the VM heap dumper, arrays are truncated to fit into a segment
+            length = Math.min(length, (MAX_SEGMENT_LENGTH - headerLength) / elementSize);
+            out.heapRecord(headerLength + length * elementSize);
+            out.u1(objArray ? OBJ_ARRAY_DUMP : PRIM_ARRAY_DUMP);
+            out.id(address);
+            out.u4(STACK_TRACE_SERIAL);
+            out.u4((int) length);
+            if (objArray) {
+                out.id(info.id);
+            } else {
+                out.u1(info.elementType);
+            }
+            myElements = address + info.headerSize;
+            myElementsEnd = myElements + length * info.elementSize;
+        }
+
+        void appendTo(Output out) throws IOException {
+            if (myError != null) {
+                throw myError;
+            }
+            if (myOut != null) {
+                try {
+                    myOut.closeSegment();
+                    myOut.flush();
+                    myOut = null;
+                    out.append(myFile.getChannel());
+                } finally {
+                    myFile.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Roots are few compared to objects, they are collected before the first segment is written
+     */
+    private class RootList implements HeapGraph.RootVisitor {
+        private long[] myAddresses = new long[256];
+        private byte[] myKinds = new byte[256];
+        private int[] myThreads = new int[256];
+        private int[] myDepths = new int[256];
+        private int mySize;
+
+        public void visitRoot(long address, byte kind, int thread, int depth) {
+            if (mySize == myAddresses.length) {
+                int capacity = mySize * 2;
+                myAddresses = Arrays.copyOf(myAddresses, capacity);
+                myKinds = Arrays.copyOf(myKinds, capacity);
+                myThreads = Arrays.copyOf(myThreads, capacity);
+                myDepths = Arrays.copyOf(myDepths, capacity);
+            }
+            myAddresses[mySize] = address;
+            myKinds[mySize] = kind;
+            myThreads[mySize] = thread;
+            myDepths[mySize] = depth;
+            mySize++;
+        }
+
+        void write(Output out) throws IOException {
+            for (int i = 0; i < mySize; i++) {
+                switch (myKinds[i]) {
+                    case HeapGraph.ROOT_THREAD:
+                        out.heapRecord(1 + myIdSize + 8);
+                        out.u1(ROOT_THREAD_OBJ);
+                        out.id(myAddresses[i]);
+                        out.u4(myThreads[i] + 1);
+                        out.u4(STACK_TRACE_SERIAL);
+                        break;
+                    case HeapGraph.ROOT_STACK_LOCAL:
+                        out.heapRecord(1 + myIdSize + 8);
+                        out.u1(ROOT_JAVA_FRAME);
+                        out.id(myAddresses[i]);
+                        out.u4(myThreads[i] + 1);
+                        out.u4(myDepths[i]);
+                        break;
+                    case HeapGraph.ROOT_JNI_GLOBAL:
+                        out.heapRecord(1 + 2 * myIdSize);
+                        out.u1(ROOT_JNI_GLOBAL);
+                        out.id(myAddresses[i]);
+                        out.id(0); // the handle
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered big endian writer, heap dump records are grouped into segments of about {@link #SEGMENT_SIZE}
+     */
+    private static class Output {
+        private final FileChannel myChannel;
+        private final int myIdSize;
+        private final ByteBuffer myBuffer;
+        private long myFlushed; // file position of the buffer start
+        private long mySegmentStart = -1; // position of the length of the open segment, -1 if none
+        private long mySegmentLength;
+
+        Output(FileChannel channel, int idSize, int bufferSize) {
+            myChannel = channel;
+            myIdSize = idSize;
+            myBuffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        void record(int tag, long length) throws IOException {
+            u1(tag);
+            u4(0); // time
+            u4((int) length);
+        }
+
+        /**
+         * Starts a new segment if the heap dump record does not fit into the open one
+         */
+        void heapRecord(long length) throws IOException {
+            if (mySegmentStart < 0 || (mySegmentLength > 0 && mySegmentLength + length > SEGMENT_SIZE)) {
+                closeSegment();
+                u1(HEAP_DUMP_SEGMENT);
+                u4(0); // time
+                mySegmentStart = position();
+                u4(0);
+                mySegmentLength = 0;
+            }
+            mySegmentLength += length;
+        }
+
+        void closeSegment() throws IOException {
+            if (mySegmentStart < 0) {
+                return;
+            }
+            if (mySegmentStart >= myFlushed) {
+                myBuffer.putInt((int) (mySegmentStart - myFlushed), (int) mySegmentLength);
+            } else {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                length.putInt(0, (int) mySegmentLength);
+                for (long position = mySegmentStart; length.hasRemaining(); ) {
+                    position += myChannel.write(length, position);
+                }
+            }
+            mySegmentStart = -1;
+        }
+
+        void u1(int value) throws IOException {
+            ensure(1);
+            myBuffer.put((byte) value);
+        }
+
+        void u2(int value) throws IOException {
+            ensure(2);
+            myBuffer.putShort((short) value);
+        }
+
+        void u4(int value) throws IOException {
+            ensure(4);
+            myBuffer.putInt(value);
+        }
+
+        void u8(long value) throws IOException {
+            ensure(8);
+            myBuffer.putLong(value);
+        }
+
+        void id(long value) throws IOException {
+            if (myIdSize == 8) {
+                u8(value);
+            } else {
+                u4((int) value);
+            }
+        }
+
+        /**
+         * @param value raw bits of the value, as read
+         */
+        void value(byte type, long value) throws IOException {
+            switch (size(type, myIdSize)) {
+                case 1:
+                    u1((int) value);
+                    break;
+                case 2:
+                    u2((int) value);
+                    break;
+                case 4:
+                    u4((int) value);
+                    break;
+                default:
+                    u8(value);
+            }
+        }
+
+        void bytes(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int length = Math.min(myBuffer.remaining(), bytes.length - offset);
+                myBuffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Copies the whole content of the channel
+         */
+        void append(FileChannel source) throws IOException {
+            flush();
+            long size = source.size();
+            for (long position = 0; position < size; ) {
+                position += source.transferTo(position, size - position, myChannel);
+            }
+            myFlushed += size;
+        }
+
+        private long position() {
+            return myFlushed + myBuffer.position();
+        }
+
+        private void ensure(int size) throws IOException {
+            if (myBuffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            myBuffer.flip();
+            while (myBuffer.hasRemaining()) {
+                myFlushed += myChannel.write(myBuffer);
+            }
+            myBuffer.clear();
+        }
+    }
+}
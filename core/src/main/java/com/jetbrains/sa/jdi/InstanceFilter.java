@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.BooleanField;
+import sun.jvm.hotspot.oops.ByteField;
+import sun.jvm.hotspot.oops.CharField;
+import sun.jvm.hotspot.oops.DoubleField;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.FloatField;
+import sun.jvm.hotspot.oops.IntField;
+import sun.jvm.hotspot.oops.LongField;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.OopUtilities;
+import sun.jvm.hotspot.oops.ShortField;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds instances of a class by a predicate on a field path, evaluated during one heap scan:
+ * only the matching objects get mirrors, instead of all instances and a field read for each of them.
+ * Field offsets are computed once per class and step, objects are read directly from the scanned memory,
+ * or through SA if the scanner can not read it.
+ */
+public class InstanceFilter {
+    public static final byte IS_NULL = 1;
+    public static final byte NOT_NULL = 2;
+    public static final byte EQUALS = 3;
+    /**
+     * both bounds are inclusive
+     */
+    public static final byte IN_RANGE = 4;
+    public static final byte STRING_EQUALS = 5;
+    public static final byte STRING_PREFIX = 6;
+
+    private static class FieldInfo {
+        final long offset;
+        final char type;
+        final Field saField;
+
+        FieldInfo(FieldImpl field) {
+            offset = field.ref().getOffset();
+            type = field.signature().charAt(0);
+            saField = field.ref();
+        }
+
+        boolean isObject() {
+            return type == 'L' || type == '[';
+        }
+
+        boolean isFloating() {
+            return type == 'F' || type == 'D';
+        }
+    }
+
+    private final VirtualMachineImpl myVm;
+    private final long myKlass;
+    private final byte myOperator;
+    // the field of each step by klass address, as index + 1 into myFields
+    private final LongCounter[] mySteps;
+    private final FieldInfo[][] myFields;
+    private final boolean myFloating;
+    private final long myMin;
+    private final long myMax;
+    private final double myMinDouble;
+    private final double myMaxDouble;
+    private final String myString;
+    private long myStringKlass;
+    private FieldInfo myStringValue;
+    private FieldInfo myStringCoder;
+    private boolean myStringBytes;
+    private int myStringHeaderSize;
+
+    private InstanceFilter(VirtualMachineImpl vm, ReferenceTypeImpl type, List<String> path,
+                           byte operator, Number min, Number max, String string) {
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException("empty field path");
+        }
+        myVm = vm;
+        myKlass = vm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(type.ref()));
+        myOperator = operator;
+        mySteps = new LongCounter[path.size()];
+        myFields = new FieldInfo[path.size()][];
+        FieldImpl first = findField(type, path.get(0));
+        if (first == null) {
+            throw new IllegalArgumentException("no field " + path.get(0) + " in " + type.name());
+        }
+        mySteps[0] = new LongCounter(1);
+        mySteps[0].add(myKlass, 1);
+        myFields[0] = new FieldInfo[] {new FieldInfo(first)};
+        if (path.size() > 1) {
+            List<ReferenceTypeImpl> classes = vm.allClasses();
+            for (int step = 1; step < path.size(); step++) {
+                LongCounter klasses = new LongCounter(16);
+                FieldInfo[] fields = new FieldInfo[16];
+                for (ReferenceTypeImpl candidate : classes) {
+                    FieldImpl field = candidate instanceof ClassTypeImpl ? findField(candidate, path.get(step)) : null;
+                    if (field != null) {
+                        if (klasses.size() == fields.length) {
+                            fields = Arrays.copyOf(fields, fields.length * 2);
+                        }
+                        fields[klasses.size()] = new FieldInfo(field);
+                        klasses.add(vm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(candidate.ref())), klasses.size() + 1);
+                    }
+                }
+                mySteps[step] = klasses;
+                myFields[step] = fields;
+            }
+        }
+        myFloating = min instanceof Float || min instanceof Double || max instanceof Float || max instanceof Double;
+        myMin = min != null ? min.longValue() : 0;
+        myMax = max != null ? max.longValue() : 0;
+        myMinDouble = min != null ? min.doubleValue() : 0;
+        myMaxDouble = max != null ? max.doubleValue() : 0;
+        myString = string;
+        if (string != null) {
+            initString();
+        }
+    }
+
+    /**
+     * @param path field names, the first one is looked up in the type and its superclasses,
+     *             the next ones in the class of the object referenced by the previous field
+     */
+    public static InstanceFilter isNull(VirtualMachineImpl vm, ReferenceTypeImpl type, List<String> path, boolean isNull) {
+        return new InstanceFilter(vm, type, path, isNull ? IS_NULL : NOT_NULL, null, null, null);
+    }
+
+    /**
+     * Integral fields are compared as longs, unless a bound is a Float or a Double.
+     * Boolean fields have values 0 and 1.
+     */
+    public static InstanceFilter inRange(VirtualMachineImpl vm, ReferenceTypeImpl type, List<String> path,
+                                         Number min, Number max) {
+        if (min == null || max == null) {
+            throw new IllegalArgumentException("no bounds");
+        }
+        return new InstanceFilter(vm, type, path, min.equals(max) ? EQUALS : IN_RANGE, min, max, null);
+    }
+
+    public static InstanceFilter string(VirtualMachineImpl vm, ReferenceTypeImpl type, List<String> path,
+                                        String value, boolean prefix) {
+        if (value == null) {
+            throw new IllegalArgumentException("no string");
+        }
+        return new InstanceFilter(vm, type, path, prefix ? STRING_PREFIX : STRING_EQUALS, null, null, value);
+    }
+
+    /**
+     * @return matching instances of exactly the type, in the heap order
+     */
+    public List<ObjectReferenceImpl> instances(final long maxInstances) {
+        final HeapScanner scanner = myVm.heapScanner();
+        List<Matcher> parts = scanner.scanParallel(new HeapScanner.VisitorFactory<Matcher>() {
+            public Matcher create() {
+                return new Matcher(scanner, maxInstances);
+            }
+        });
+        return HeapScanner.AddressCollector.mirrors(myVm, parts, maxInstances);
+    }
+
+    private void initString() {
+        List<ReferenceTypeImpl> strings = myVm.findReferenceTypes("Ljava/lang/String;");
+        if (strings.isEmpty()) {
+            return;
+        }
+        ReferenceTypeImpl string = strings.get(0);
+        myStringKlass = myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(string.ref()));
+        FieldImpl value = findField(string, "value");
+        FieldImpl coder = findField(string, "coder");
+        if (value != null) {
+            myStringValue = new FieldInfo(value);
+            myStringBytes = value.signature().equals("[B");
+            List<ReferenceTypeImpl> arrays = myVm.findReferenceTypes(value.signature());
+            if (!arrays.isEmpty()) {
+                myStringHeaderSize = HeapScanner.arrayHeaderSize(arrays.get(0).ref());
+            }
+        }
+        if (coder != null) {
+            myStringCoder = new FieldInfo(coder);
+        }
+    }
+
+    /**
+     * @return the non-static field of the type or of its nearest superclass
+     */
+    private static FieldImpl findField(ReferenceTypeImpl type, String name) {
+        for (ReferenceTypeImpl current = type; current != null;
+             current = current instanceof ClassTypeImpl ? ((ClassTypeImpl) current).superclass() : null) {
+            for (FieldImpl field : current.fields()) {
+                if (!field.isStatic() && field.name().equals(name)) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(long address, Reader reader) {
+        long object = address;
+        for (int step = 0; step < mySteps.length; step++) {
+            int index = (int) mySteps[step].get(step == 0 ? myKlass : reader.klass(object));
+            if (index == 0) {
+                return false;
+            }
+            FieldInfo field = myFields[step][index - 1];
+            long value = reader.value(object, field);
+            if (step == mySteps.length - 1) {
+                return test(field, value, reader);
+            }
+            if (!field.isObject() || value == 0) {
+                return false;
+            }
+            object = value;
+        }
+        return false;
+    }
+
+    private boolean test(FieldInfo field, long value, Reader reader) {
+        switch (myOperator) {
+            case IS_NULL:
+                return field.isObject() && value == 0;
+            case NOT_NULL:
+                return field.isObject() && value != 0;
+            case EQUALS:
+            case IN_RANGE:
+                if (field.isObject()) {
+                    return false;
+                }
+                if (field.isFloating() || myFloating) {
+                    double d = field.type == 'F' ? Float.intBitsToFloat((int) value) :
+                               field.type == 'D' ? Double.longBitsToDouble(value) : value;
+                    return d >= myMinDouble && d <= myMaxDouble;
+                }
+                return value >= myMin && value <= myMax;
+            case STRING_EQUALS:
+            case STRING_PREFIX:
+                if (!field.isObject() || value == 0) {
+                    return false;
+                }
+                // one more char tells a longer string from an equal one
+                boolean prefix = myOperator == STRING_PREFIX;
+                String s = reader.string(value, prefix ? myString.length() : myString.length() + 1);
+                return s != null && (prefix ? s.startsWith(myString) : s.equals(myString));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads fields of objects, values of primitive fields are sign extended (chars are not),
+     * floats and doubles are returned as raw bits, references as addresses
+     */
+    private abstract static class Reader {
+        /**
+         * @return 0 if the object can not be read
+         */
+        abstract long klass(long object);
+
+        abstract long value(long object, FieldInfo field);
+
+        /**
+         * @return at most maxLength first chars, null if the object is not a string or can not be read
+         */
+        abstract String string(long object, int maxLength);
+    }
+
+    /**
+     * Reads the scanned object from the scan memory, other objects with a random reader
+     */
+    private class MemoryReader extends Reader {
+        private final HeapScanner.RandomReader myRandom;
+        private long myObject;
+        private HeapScanner.Memory myObjectMemory;
+
+        MemoryReader(HeapScanner scanner) {
+            myRandom = scanner.randomReader();
+        }
+
+        void setObject(long object, HeapScanner.Memory memory) {
+            myObject = object;
+            myObjectMemory = memory;
+        }
+
+        private HeapScanner.Memory load(long object, long length) {
+            return object == myObject ? myObjectMemory : myRandom.load(object, length);
+        }
+
+        long klass(long object) {
+            return myRandom.klass(object);
+        }
+
+        long value(long object, FieldInfo field) {
+            HeapScanner.Memory memory = load(object, field.offset + 8);
+            if (memory == null) {
+                return 0;
+            }
+            long address = object + field.offset;
+            switch (field.type) {
+                case 'Z':
+                    return memory.getByte(address) != 0 ? 1 : 0;
+                case 'B':
+                    return memory.getByte(address);
+                case 'C':
+                    return memory.getShort(address) & 0xFFFF;
+                case 'S':
+                    return memory.getShort(address);
+                case 'I':
+                case 'F':
+                    return memory.getInt(address);
+                case 'J':
+                case 'D':
+                    return memory.getLong(address);
+                default:
+                    return memory.getOop(address);
+            }
+        }
+
+        String string(long object, int maxLength) {
+            if (myStringValue == null || myStringHeaderSize == 0 || klass(object) != myStringKlass) {
+                return null;
+            }
+            long array = value(object, myStringValue);
+            if (array == 0) {
+                return null;
+            }
+            // compact strings have a byte[] value, latin1 unless the coder is set
+            boolean utf16 = !myStringBytes || (myStringCoder != null && value(object, myStringCoder) != 0);
+            long lengthOffset = myVm.heapScanner().lengthOffset();
+            HeapScanner.Memory memory = myRandom.load(array, lengthOffset + 4);
+            if (memory == null) {
+                return null;
+            }
+            long length = memory.getInt(array + lengthOffset);
+            if (utf16 && myStringBytes) {
+                length /= 2;
+            }
+            int count = (int) Math.min(length, maxLength);
+            memory = myRandom.load(array, myStringHeaderSize + (long) count * (utf16 ? 2 : 1));
+            if (memory == null) {
+                return null;
+            }
+            char[] chars = new char[count];
+            for (int i = 0; i < count; i++) {
+                chars[i] = utf16 ? (char) memory.getShort(array + myStringHeaderSize + i * 2L) :
+                           (char) (memory.getByte(array + myStringHeaderSize + i) & 0xFF);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Reads objects through SA, when the scanner can not read the heap memory: such scans run on the calling thread
+     */
+    private class OopReader extends Reader {
+        private final HeapScanner myScanner;
+
+        OopReader(HeapScanner scanner) {
+            myScanner = scanner;
+        }
+
+        long klass(long object) {
+            return myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(myScanner.newOop(object).getKlass()));
+        }
+
+        long value(long object, FieldInfo field) {
+            Oop oop = myScanner.newOop(object);
+            Field saField = field.saField;
+            switch (field.type) {
+                case 'Z':
+                    return ((BooleanField) saField).getValue(oop) ? 1 : 0;
+                case 'B':
+                    return ((ByteField) saField).getValue(oop);
+                case 'C':
+                    return ((CharField) saField).getValue(oop);
+                case 'S':
+                    return ((ShortField) saField).getValue(oop);
+                case 'I':
+                    return ((IntField) saField).getValue(oop);
+                case 'F':
+                    return Float.floatToRawIntBits(((FloatField) saField).getValue(oop));
+                case 'J':
+                    return ((LongField) saField).getValue(oop);
+                case 'D':
+                    return Double.doubleToRawLongBits(((DoubleField) saField).getValue(oop));
+                default:
+                    OopHandle handle = ((OopField) saField).getValueAsOopHandle(oop);
+                    return handle != null ? myVm.getAddressValue(handle) : 0;
+            }
+        }
+
+        String string(long object, int maxLength) {
+            if (klass(object) != myStringKlass) {
+                return null;
+            }
+            String s = OopUtilities.stringOopToString(myScanner.newOop(object));
+            return s != null && s.length() > maxLength ? s.substring(0, maxLength) : s;
+        }
+    }
+
+    /**
+     * Candidates are decided on their content when the scanner reads the memory, in accept otherwise
+     */
+    private class Matcher extends HeapScanner.AddressCollector implements HeapScanner.ContentVisitor {
+        private final MemoryReader myMemoryReader;
+        private final OopReader myOopReader;
+        private boolean myCandidate;
+
+        Matcher(HeapScanner scanner, long max) {
+            super(max);
+            if (scanner.readsMemory()) {
+                myMemoryReader = new MemoryReader(scanner);
+                myOopReader = null;
+            } else {
+                myMemoryReader = null;
+                myOopReader = new OopReader(scanner);
+            }
+        }
+
+        @Override
+        boolean accept(long address, long klass) {
+            if (klass != myKlass) {
+                myCandidate = false;
+                return false;
+            }
+            if (myOopReader != null) {
+                return matches(address, myOopReader);
+            }
+            myCandidate = true;
+            return false;
+        }
+
+        public boolean wantsContent() {
+            return myCandidate;
+        }
+
+        public boolean visitContent(long address, HeapScanner.Memory memory, long start, long end) {
+            if (start == address) {
+                myCandidate = false;
+                myMemoryReader.setObject(address, memory);
+                boolean matches = matches(address, myMemoryReader);
+                myMemoryReader.setObject(0, null);
+                if (matches) {
+                    add(address);
+                }
+            }
+            return isFull();
+        }
+    }
+}
@@ -35,9 +35,9 @@ class JvmUtils {
         return frame.getMonitors();
     }
 
-    static JavaVFrame getFrameJavaSender(JavaVFrame frame) {
+    static JavaVFrame getFrameJavaSender(VirtualMachineImpl vm, JavaVFrame frame) {
         try {
-            return frame.javaSender();
+            return vm.scopeDescCache.javaSender(frame);
         } catch (AssertionFailure e) {
             return null; // do not fail
         }
@@ -180,6 +180,10 @@ public class LocationImpl {
         return lineNumber((String)null);
     }
 
+    public int baseLineNumber() {
+        return lineNumber(SDE.BASE_STRATUM_NAME);
+    }
+
     public int lineNumber(String stratumID) {
         return lineNumber(declaringType.stratum(stratumID));
     }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+/**
+ * Open addressing map from long keys to long counters, nothing is allocated on updates of existing keys.
+ * Key 0 is reserved for empty slots, raw addresses are never 0.
+ */
+class LongCounter {
+    private long[] myKeys;
+    private long[] myValues;
+    private int mySize;
+
+    LongCounter(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        myKeys = new long[capacity];
+        myValues = new long[capacity];
+    }
+
+    int size() {
+        return mySize;
+    }
+
+    /**
+     * Adds the key with the zero counter if it is not in the map yet
+     */
+    void put(long key) {
+        add(key, 0);
+    }
+
+    /**
+     * Adds delta to the counter of the key, the key is added if needed
+     */
+    void add(long key, long delta) {
+        int index = find(key);
+        if (myKeys[index] == 0) {
+            if ((mySize + 1) * 2 > myKeys.length) {
+                rehash();
+                index = find(key);
+            }
+            myKeys[index] = key;
+            mySize++;
+        }
+        myValues[index] += delta;
+    }
+
+    /**
+     * Adds delta to the counter of the key if it is in the map
+     * @return false if the key is not in the map
+     */
+    boolean addIfPresent(long key, long delta) {
+        int index = find(key);
+        if (myKeys[index] == 0) {
+            return false;
+        }
+        myValues[index] += delta;
+        return true;
+    }
+
+    boolean contains(long key) {
+        return myKeys[find(key)] != 0;
+    }
+
+    /**
+     * @return the counter of the key, 0 if the key is not in the map
+     */
+    long get(long key) {
+        return myValues[find(key)];
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    long[] keys() {
+        long[] res = new long[mySize];
+        int i = 0;
+        for (long key : myKeys) {
+            if (key != 0) {
+                res[i++] = key;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return index of the key, or of the empty slot where it should be
+     */
+    private int find(long key) {
+        long[] keys = myKeys;
+        int mask = keys.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int index = (int) (h ^ (h >>> 32)) & mask;
+        while (keys[index] != key && keys[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void rehash() {
+        long[] keys = myKeys;
+        long[] values = myValues;
+        myKeys = new long[keys.length * 2];
+        myValues = new long[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                int index = find(keys[i]);
+                myKeys[index] = keys[i];
+                myValues[index] = values[i];
+            }
+        }
+    }
+}
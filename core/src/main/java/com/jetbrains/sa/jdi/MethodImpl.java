@@ -39,6 +39,7 @@ package com.jetbrains.sa.jdi;
 import com.sun.jdi.AbsentInformationException;
 import sun.jvm.hotspot.oops.Symbol;
 
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 
 public abstract class MethodImpl extends TypeComponentImpl {
@@ -89,6 +90,13 @@ public abstract class MethodImpl extends TypeComponentImpl {
         return allLineLocations(declaringType.stratum(null));
     }
 
+    /**
+     * Locations of the class file line table, as JDWP returns them: debuggers apply the strata themselves
+     */
+    public final List<LocationImpl> baseLineLocations() throws AbsentInformationException {
+        return allLineLocations(declaringType.stratum(SDE.BASE_STRATUM_NAME));
+    }
+
     LineInfo codeIndexToLineInfo(SDE.Stratum stratum,
                                  long codeIndex) {
         if (stratum.isJava()) {
@@ -145,4 +153,11 @@ public abstract class MethodImpl extends TypeComponentImpl {
     abstract public List<LocalVariableImpl> variables() throws AbsentInformationException;
 
     abstract public byte[] bytecodes();
+
+    abstract public int bytecodesLength();
+
+    /**
+     * Writes the bytecodes into the stream without a copy of the cached array
+     */
+    abstract public void writeBytecodes(ByteArrayOutputStream out);
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.JavaVFrame;
+import sun.jvm.hotspot.runtime.MonitorInfo;
+import sun.jvm.hotspot.runtime.ObjectMonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Monitors of all threads, collected in one pass over all stacks: the target can not change while attached.
+ * Replaces per object stack walks (refer to JvmtiEnvBase::count_locked_objects) and per object scans of all threads
+ * for contenders and waiters. Stacks are walked on the calling thread, see {@link ConcurrencyUtils}.
+ */
+class MonitorIndex {
+    static class OwnedMonitor {
+        final OopHandle object;
+        final int stackDepth;
+
+        private OwnedMonitor(OopHandle object, int stackDepth) {
+            this.object = object;
+            this.stackDepth = stackDepth;
+        }
+    }
+
+    private static class ThreadMonitors {
+        // refer to JvmtiEnvBase::get_owned_monitors
+        private final List<OwnedMonitor> owned = new ArrayList<OwnedMonitor>();
+        // number of (lightweight) entries of each object in the stack
+        private final Map<Long, Integer> entryCounts = new HashMap<Long, Integer>();
+        private OopHandle waitingObject;
+        private OopHandle pendingObject;
+    }
+
+    private final VirtualMachineImpl myVm;
+    private final Map<Long, ThreadMonitors> myThreads = new HashMap<Long, ThreadMonitors>();
+    private final Map<Long, List<ThreadReferenceImpl>> myContenders = new HashMap<Long, List<ThreadReferenceImpl>>();
+    private final Map<Long, List<ThreadReferenceImpl>> myWaiters = new HashMap<Long, List<ThreadReferenceImpl>>();
+
+    MonitorIndex(VirtualMachineImpl vm, List<ThreadReferenceImpl> threads) {
+        myVm = vm;
+        for (ThreadReferenceImpl thread : threads) {
+            JavaThread javaThread = thread.getJavaThread();
+            if (javaThread == null) {
+                continue;
+            }
+            ThreadMonitors threadMonitors = read(vm, javaThread);
+            myThreads.put(thread.uniqueID(), threadMonitors);
+            if (threadMonitors.pendingObject != null) {
+                add(myContenders, threadMonitors.pendingObject, thread);
+            }
+            if (threadMonitors.waitingObject != null) {
+                add(myWaiters, threadMonitors.waitingObject, thread);
+            }
+        }
+    }
+
+    private void add(Map<Long, List<ThreadReferenceImpl>> map, OopHandle object, ThreadReferenceImpl thread) {
+        long key = myVm.getAddressValue(object);
+        List<ThreadReferenceImpl> threads = map.get(key);
+        if (threads == null) {
+            threads = new ArrayList<ThreadReferenceImpl>(1);
+            map.put(key, threads);
+        }
+        threads.add(thread);
+    }
+
+    private static ThreadMonitors read(VirtualMachineImpl vm, JavaThread javaThread) {
+        ThreadMonitors res = new ThreadMonitors();
+        ObjectMonitor waitingMonitor = javaThread.getCurrentWaitingMonitor();
+        if (waitingMonitor != null) {
+            // save object of current wait() call (if any) for later comparison
+            res.waitingObject = waitingMonitor.object();
+        }
+        ObjectMonitor pendingMonitor = javaThread.getCurrentPendingMonitor();
+        if (pendingMonitor != null) {
+            // save object of current enter() call (if any) for later comparison
+            res.pendingObject = pendingMonitor.object();
+        }
+
+        JavaVFrame frame = javaThread.getLastJavaVFrameDbg();
+        int depth = 0;
+        while (frame != null) {
+            for (Object frameMonitor : JvmUtils.getFrameMonitors(frame)) {
+                MonitorInfo mi = (MonitorInfo) frameMonitor;
+                if (mi.eliminated() && frame.isCompiledFrame()) {
+                    continue; // skip eliminated monitor
+                }
+                OopHandle obj = mi.owner();
+                if (obj == null) {
+                    // this monitor doesn't have an owning object so skip it
+                    continue;
+                }
+                long key = vm.getAddressValue(obj);
+                Integer count = res.entryCounts.get(key);
+                res.entryCounts.put(key, count != null ? count + 1 : 1);
+                if (count != null) {
+                    // recursive lock, already have this object
+                    continue;
+                }
+                if (obj.equals(res.waitingObject) || obj.equals(res.pendingObject)) {
+                    // the thread is waiting or pending on this monitor so it isn't really owned
+                    continue;
+                }
+                res.owned.add(new OwnedMonitor(obj, depth));
+            }
+            frame = JvmUtils.getFrameJavaSender(vm, frame);
+            depth++;
+        }
+        return res;
+    }
+
+    /**
+     * @return objects locked by the thread, with the depth of the frame where each was locked first
+     */
+    List<OwnedMonitor> ownedMonitors(ThreadReferenceImpl thread) {
+        ThreadMonitors threadMonitors = myThreads.get(thread.uniqueID());
+        return threadMonitors != null ? threadMonitors.owned : Collections.<OwnedMonitor>emptyList();
+    }
+
+    /**
+     * @return the object of the current Object.wait() call, or of the monitor the thread is trying to enter
+     */
+    OopHandle contendedMonitor(ThreadReferenceImpl thread) {
+        ThreadMonitors threadMonitors = myThreads.get(thread.uniqueID());
+        if (threadMonitors == null) {
+            return null;
+        }
+        return threadMonitors.waitingObject != null ? threadMonitors.waitingObject : threadMonitors.pendingObject;
+    }
+
+    /**
+     * @return the object of the monitor the thread is trying to enter
+     */
+    OopHandle pendingMonitor(ThreadReferenceImpl thread) {
+        ThreadMonitors threadMonitors = myThreads.get(thread.uniqueID());
+        return threadMonitors != null ? threadMonitors.pendingObject : null;
+    }
+
+    /**
+     * @return the number of times the object is locked by frames of the thread
+     */
+    int entryCount(ThreadReferenceImpl thread, OopHandle object) {
+        ThreadMonitors threadMonitors = myThreads.get(thread.uniqueID());
+        if (threadMonitors == null) {
+            return 0;
+        }
+        Integer count = threadMonitors.entryCounts.get(myVm.getAddressValue(object));
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return threads trying to enter the object's monitor
+     */
+    List<ThreadReferenceImpl> contenders(OopHandle object) {
+        List<ThreadReferenceImpl> threads = myContenders.get(myVm.getAddressValue(object));
+        return threads != null ? threads : Collections.<ThreadReferenceImpl>emptyList();
+    }
+
+    /**
+     * @return threads in Object.wait() on the object
+     */
+    List<ThreadReferenceImpl> waiters(OopHandle object) {
+        List<ThreadReferenceImpl> threads = myWaiters.get(myVm.getAddressValue(object));
+        return threads != null ? threads : Collections.<ThreadReferenceImpl>emptyList();
+    }
+}
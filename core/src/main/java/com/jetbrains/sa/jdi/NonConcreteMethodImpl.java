@@ -39,6 +39,7 @@ package com.jetbrains.sa.jdi;
 import com.sun.jdi.AbsentInformationException;
 import com.sun.jdi.InternalException;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Collections;
 import java.util.List;
 
@@ -63,6 +64,13 @@ public class NonConcreteMethodImpl extends MethodImpl {
         return new byte[0];
     }
 
+    public int bytecodesLength() {
+        return 0;
+    }
+
+    public void writeBytecodes(ByteArrayOutputStream out) {
+    }
+
     public int argSlotCount() {
         throw new InternalException("should not get here");
     }
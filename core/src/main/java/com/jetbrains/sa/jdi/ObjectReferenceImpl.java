@@ -42,8 +42,6 @@ import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.debugger.OopHandle;
 import sun.jvm.hotspot.oops.*;
 import sun.jvm.hotspot.runtime.JavaThread;
-import sun.jvm.hotspot.runtime.JavaVFrame;
-import sun.jvm.hotspot.runtime.MonitorInfo;
 import sun.jvm.hotspot.runtime.ObjectMonitor;
 import sun.jvm.hotspot.utilities.Assert;
 
@@ -74,23 +72,6 @@ public class ObjectReferenceImpl extends ValueImpl {
         return referenceType;
     }
 
-    interface HandleVisitor {
-        boolean visit(OopHandle handle);
-    }
-
-    protected void visitReferences(HandleVisitor visitor) {
-        ReferenceTypeImpl referenceType = referenceType();
-        Instance typeMirror = referenceType.getJavaMirror();
-        for (FieldImpl field : referenceType.allFields()) {
-            if (field.ref().getFieldType().isOop()) {
-                OopHandle valueHandle = ((OopField) field.ref()).getValueAsOopHandle(field.isStatic() ? typeMirror : saObject);
-                if (valueHandle != null && visitor.visit(valueHandle)) {
-                    return;
-                }
-            }
-        }
-    }
-
     public ValueImpl getValue(FieldImpl field) {
         if (field.isStatic()) {
             return referenceType.getValue(field);
@@ -146,82 +127,73 @@ public class ObjectReferenceImpl extends ValueImpl {
 
     // new method since 1.6.
     // Real body will be supplied later.
-    public List<ObjectReferenceImpl> referringObjects(long maxReferrers) {
+    public List<ObjectReferenceImpl> referringObjects(final long maxReferrers) {
         if (!vm().canGetInstanceInfo()) {
             throw new UnsupportedOperationException("target does not support getting instances");
         }
         if (maxReferrers < 0) {
             throw new IllegalArgumentException("maxReferrers is less than zero: " + maxReferrers);
         }
-        final OopHandle thisHandle = saObject.getHandle();
-        final List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(0);
-        final long max = maxReferrers;
-        vm().saObjectHeap().iterate(new DefaultHeapVisitor() {
-            private long refCount = 0;
-
-            public boolean doObj(Oop oop) {
-                try {
-                    final ObjectReferenceImpl objref = vm().objectMirror(oop);
-                    objref.visitReferences(new HandleVisitor() {
-                        @Override
-                        public boolean visit(OopHandle handle) {
-                            if (thisHandle.equals(handle)) {
-                                objects.add(objref);
-                                refCount++;
-                                return true;
-                            }
-                            return false;
-                        }
-                    });
-                    if (max > 0 && refCount >= max) {
-                        return true;
+        final long thisAddress = uniqueID();
+        final LongCounter staticReferrers = staticReferrerKlasses(thisAddress);
+        List<ReferrerCollector> parts = vm().heapScanner().scanParallel(
+                new HeapScanner.VisitorFactory<ReferrerCollector>() {
+                    public ReferrerCollector create() {
+                        return new ReferrerCollector(maxReferrers, thisAddress, staticReferrers);
                     }
-                } catch (RuntimeException x) {
-                    // Ignore RuntimeException thrown from vm().objectMirror(oop)
-                    // for bad oop. It is possible to see some bad oop
-                    // because heap might be iterating at no safepoint.
-                }
-                return false;
+                });
+        return HeapScanner.AddressCollector.mirrors(vm(), parts, maxReferrers);
+    }
+
+    // called on pool threads, no mirrors
+    private static class ReferrerCollector extends HeapScanner.AddressCollector implements HeapScanner.ReferenceVisitor {
+        private final long myTarget;
+        private final LongCounter myStaticReferrers;
+
+        ReferrerCollector(long max, long target, LongCounter staticReferrers) {
+            super(max);
+            myTarget = target;
+            myStaticReferrers = staticReferrers;
+        }
 
+        @Override
+        boolean accept(long address, long klass) {
+            return myStaticReferrers.contains(klass);
+        }
+
+        public boolean visitReference(long address, long target) {
+            if (last() == address) {
+                // already collected
+                return true;
             }
-        });
-        return objects;
+            if (target == myTarget) {
+                add(address);
+                return true;
+            }
+            return false;
+        }
     }
 
-    // refer to JvmtiEnvBase::count_locked_objects.
-    // Count the number of objects for a lightweight monitor. The obj
-    // parameter is object that owns the monitor so this routine will
-    // count the number of times the same object was locked by frames
-    // in JavaThread. i.e., we count total number of times the same
-    // object is (lightweight) locked by given thread.
-    private int countLockedObjects(JavaThread jt, Oop obj) {
-        int res = 0;
-        JavaVFrame frame = jt.getLastJavaVFrameDbg();
-        while (frame != null) {
-            OopHandle givenHandle = obj.getHandle();
-            for (Object monitor : JvmUtils.getFrameMonitors(frame)) {
-                MonitorInfo mi = (MonitorInfo) monitor;
-                if (mi.eliminated() && frame.isCompiledFrame()) continue; // skip eliminated monitor
-                if (givenHandle.equals(mi.owner())) {
-                    res++;
+    // instances are referrers through the static fields of their types, those are checked once per type
+    private LongCounter staticReferrerKlasses(long target) {
+        LongCounter res = new LongCounter(16);
+        for (ReferenceTypeImpl type : vm().allClasses()) {
+            if (type instanceof ClassTypeImpl) {
+                Instance typeMirror = type.getJavaMirror();
+                for (FieldImpl field : type.allFields()) {
+                    if (field.isStatic() && field.ref().getFieldType().isOop()) {
+                        OopHandle valueHandle = ((OopField) field.ref()).getValueAsOopHandle(typeMirror);
+                        if (valueHandle != null && vm().getAddressValue(valueHandle) == target) {
+                            res.put(vm().getAddressValue(CompatibilityHelper.INSTANCE.getAddress(type.ref())));
+                            break;
+                        }
+                    }
                 }
             }
-            frame = JvmUtils.getFrameJavaSender(frame);
         }
         return res;
     }
 
-    // wrappers on same named method of Threads class
-    // returns List<JavaThread>
-    private List getPendingThreads(ObjectMonitor mon) {
-        return vm().saVM().getThreads().getPendingThreads(mon);
-    }
-
-    // returns List<JavaThread>
-    private List getWaitingThreads(ObjectMonitor mon) {
-        return vm().saVM().getThreads().getWaitingThreads(mon);
-    }
-
     private JavaThread owningThreadFromMonitor(Address addr) {
         return vm().saVM().getThreads().owningThreadFromMonitor(addr);
     }
@@ -269,7 +241,7 @@ public class ObjectReferenceImpl extends ValueImpl {
                 // The owner field is the Lock word on the JavaThread's stack
                 // so the recursions field is not valid. We have to count the
                 // number of recursive monitor entries the hard way.
-                entryCount = countLockedObjects(owningThread.getJavaThread(), saObject);
+                entryCount = vm().monitorIndex().entryCount(owningThread, saObject.getHandle());
             }
         }
 
@@ -278,12 +250,9 @@ public class ObjectReferenceImpl extends ValueImpl {
         if (mon != null) {
             // this object has a heavyweight monitor. threads could
             // be contenders or waiters
+            MonitorIndex monitorIndex = vm().monitorIndex();
             // add all contenders
-            List pendingThreads = getPendingThreads(mon);
-            // convert the JavaThreads to ThreadReferenceImpls
-            for (Object pendingThread : pendingThreads) {
-                waitingThreads.add(vm().threadMirror((JavaThread) pendingThread));
-            }
+            waitingThreads.addAll(monitorIndex.contenders(saObject.getHandle()));
 
             // add all waiters (threads in Object.wait())
             // note that we don't do this JVMTI way. To do it JVMTI way,
@@ -291,11 +260,7 @@ public class ObjectReferenceImpl extends ValueImpl {
             // ObjectMonitor::_queue. But we don't have this struct exposed
             // in vmStructs. We do waiters list in a way similar to getting
             // pending threads list
-            List objWaitingThreads = getWaitingThreads(mon);
-            // convert the JavaThreads to ThreadReferenceImpls
-            for (Object objWaitingThread : objWaitingThreads) {
-                waitingThreads.add(vm().threadMirror((JavaThread) objWaitingThread));
-            }
+            waitingThreads.addAll(monitorIndex.waiters(saObject.getHandle()));
         }
     }
 
@@ -62,6 +62,8 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
     private SoftReference<List<MethodImpl>> methodsCache;
     private SoftReference<List<ReferenceTypeImpl>> nestedTypesCache;
     private SoftReference<List<MethodImpl>> methodInvokesCache;
+    private SoftReference<byte[]> constantPoolCache;
+    private SoftReference<byte[]> classFileCache;
     protected final VirtualMachineImpl vm;
 
 
@@ -467,7 +469,12 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
            if (extension == null) {
               sde = NO_SDE_INFO_MARK;
            } else {
-              sde = new SDE(extension);
+              try {
+                 sde = new SDE(extension);
+              } catch (InternalError e) {
+                 // malformed SourceDebugExtension, do not break locations of the whole class
+                 sde = NO_SDE_INFO_MARK;
+              }
            }
            sdeRef = new SoftReference<SDE>(sde);
         }
@@ -497,21 +504,20 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
         if (isAbstract() || (this instanceof InterfaceTypeImpl)) {
             return Collections.emptyList();
         }
-        final List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(0);
-
-        final Address givenKls = CompatibilityHelper.INSTANCE.getAddress(saKlass);
+        final long givenKls = vm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(saKlass));
         final long max = maxInstances;
-        vm.saObjectHeap().iterate(new DefaultHeapVisitor() {
-                private long instCount = 0;
-                public boolean doObj(Oop oop) {
-                    if (givenKls.equals(CompatibilityHelper.INSTANCE.getKlassAddress(oop))) {
-                        objects.add(vm.objectMirror(oop));
-                        instCount++;
+        List<HeapScanner.AddressCollector> parts = vm.heapScanner().scanParallel(
+                new HeapScanner.VisitorFactory<HeapScanner.AddressCollector>() {
+                    public HeapScanner.AddressCollector create() {
+                        return new HeapScanner.AddressCollector(max) {
+                            @Override
+                            boolean accept(long address, long klass) {
+                                return klass == givenKls;
+                            }
+                        };
                     }
-                    return max > 0 && instCount >= max;
-                }
-            });
-        return objects;
+                });
+        return HeapScanner.AddressCollector.mirrors(vm, parts, max);
     }
 
     int getModifiers() {
@@ -602,12 +608,31 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
 
     // new method since 1.6
     public byte[] constantPool() {
+        return sharedConstantPool().clone();
+    }
+
+    public int constantPoolLength() {
+        return sharedConstantPool().length;
+    }
+
+    /**
+     * Writes the constant pool bytes into the stream without a copy of the cached array
+     */
+    public void writeConstantPool(ByteArrayOutputStream out) {
+        byte[] constantPool = sharedConstantPool();
+        out.write(constantPool, 0, constantPool.length);
+    }
+
+    private byte[] sharedConstantPool() {
         if (!vm.canGetConstantPool()) {
             throw new UnsupportedOperationException("Cannot get constant pool");
         }
-        if (this instanceof ArrayTypeImpl) {
-            return new byte[0];
-        } else {
+        return this instanceof ArrayTypeImpl ? new byte[0] : getConstantPool();
+    }
+
+    private byte[] getConstantPool() {
+        byte[] constantPool = (constantPoolCache != null) ? constantPoolCache.get() : null;
+        if (constantPool == null) {
             ByteArrayOutputStream bs = new ByteArrayOutputStream() {
                 @Override
                 public byte[] toByteArray() {
@@ -626,7 +651,41 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
                 ex.printStackTrace();
                 return new byte[0];
             }
-            return bs.toByteArray();
+            constantPool = bs.toByteArray();
+            constantPoolCache = new SoftReference<byte[]>(constantPool);
+        }
+        return constantPool;
+    }
+
+    /**
+     * @return length of the class file reconstructed by SA, or -1 for array types
+     */
+    public int classFileLength() throws IOException {
+        byte[] classFile = getClassFile();
+        return classFile != null ? classFile.length : -1;
+    }
+
+    /**
+     * Writes the class file reconstructed by SA into the stream without a copy of the cached array
+     */
+    public void writeClassFile(ByteArrayOutputStream out) throws IOException {
+        byte[] classFile = getClassFile();
+        if (classFile != null) {
+            out.write(classFile, 0, classFile.length);
+        }
+    }
+
+    private byte[] getClassFile() throws IOException {
+        if (!(saKlass instanceof InstanceKlass)) {
+            return null;
+        }
+        byte[] classFile = (classFileCache != null) ? classFileCache.get() : null;
+        if (classFile == null) {
+            ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            new ClassWriter((InstanceKlass) saKlass, bs).write();
+            classFile = bs.toByteArray();
+            classFileCache = new SoftReference<byte[]>(classFile);
         }
+        return classFile;
     }
 }
@@ -38,6 +38,7 @@ package com.jetbrains.sa.jdi;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 class SDE {
@@ -151,6 +152,20 @@ class SDE {
             return result;
         }
 
+        /**
+         * @return index of the line record mapping the base line in this stratum, -1 if it is not mapped
+         */
+        int lineRecord(int jplsLine) {
+            return stiLineTableIndex(sti, jplsLine);
+        }
+
+        /**
+         * @param lineRecord as returned by {@link #lineRecord} for the base line
+         */
+        int lineNumber(int lineRecord, int jplsLine) {
+            return stiLineNumber(sti, lineRecord, jplsLine);
+        }
+
         LineStratum lineStratum(ReferenceTypeImpl refType,
                                 int jplsLine) {
             int lti = stiLineTableIndex(sti, jplsLine);
@@ -237,6 +252,14 @@ class SDE {
     private int stratumIndex = 0;
     private int currentFileId = 0;
 
+    /*
+     * Per stratum line table indexes sorted by jplsStart, built on first lookup.
+     * NO_LINE_INDEX if the ranges overlap, then the first matching record
+     * in the table order is searched linearly as before.
+     */
+    private static final int[] NO_LINE_INDEX = new int[0];
+    private int[][] stratumLineIndexes = null;
+
     private int defaultStratumIndex = -1;
     private int baseStratumIndex = -2; /* so as not to match -1 above */
     private int sdePos = 0;
@@ -650,7 +673,55 @@ class SDE {
 
     /***************** query functions ***********************/
 
+    private int[] stiLineIndex(int sti) {
+        int[][] indexes = stratumLineIndexes;
+        if (indexes == null) {
+            indexes = new int[stratumIndex][];
+            stratumLineIndexes = indexes;
+        }
+        int[] index = indexes[sti];
+        if (index == null) {
+            int lineIndexStart = stratumTable[sti].lineIndex;
+            /* one past end */
+            int lineIndexEnd = stratumTable[sti+1].lineIndex;
+            long[] keys = new long[lineIndexEnd - lineIndexStart];
+            for (int i = lineIndexStart; i < lineIndexEnd; ++i) {
+                keys[i - lineIndexStart] = ((long) lineTable[i].jplsStart << 32) | i;
+            }
+            Arrays.sort(keys);
+            index = new int[keys.length];
+            for (int i = 0; i < keys.length; ++i) {
+                index[i] = (int) keys[i];
+                if (i > 0 && lineTable[index[i - 1]].jplsEnd >= lineTable[index[i]].jplsStart) {
+                    index = NO_LINE_INDEX;
+                    break;
+                }
+            }
+            indexes[sti] = index;
+        }
+        return index;
+    }
+
     private int stiLineTableIndex(int sti, int jplsLine) {
+        int[] index = stiLineIndex(sti);
+        if (index != NO_LINE_INDEX) {
+            // find the last record starting not after the line
+            int low = 0;
+            int high = index.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (lineTable[index[mid]].jplsStart <= jplsLine) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (high >= 0 && jplsLine <= lineTable[index[high]].jplsEnd) {
+                return index[high];
+            }
+            return -1;
+        }
+
         int i;
         int lineIndexStart;
         int lineIndexEnd;
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.code.CodeBlob;
+import sun.jvm.hotspot.code.NMethod;
+import sun.jvm.hotspot.code.ScopeDesc;
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.runtime.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decoded scope descriptors of compiled frames, shared by all stack walks of the session.
+ * Threads mostly share stack shapes, so the same (nmethod, pc) pairs are decoded over and over otherwise.
+ * Walks are done in parallel, so the maps are concurrent.
+ */
+class ScopeDescCache {
+    // the pc address identifies both the nmethod and the pc
+    private final ConcurrentMap<Long, ScopeDesc> myScopes = new ConcurrentHashMap<Long, ScopeDesc>();
+    private final ConcurrentMap<ScopeKey, ScopeDesc> mySenders = new ConcurrentHashMap<ScopeKey, ScopeDesc>();
+
+    /**
+     * Same as {@link VFrame#javaSender()} for a java frame, with scope descriptors taken from the cache
+     */
+    JavaVFrame javaSender(JavaVFrame frame) {
+        VFrame sender = sender(frame);
+        while (sender != null && !sender.isJavaFrame()) {
+            sender = sender(sender);
+        }
+        return (JavaVFrame) sender;
+    }
+
+    // refer to VFrame.sender and CompiledVFrame.sender
+    private VFrame sender(VFrame frame) {
+        if (frame instanceof CompiledVFrame) {
+            ScopeDesc scope = ((CompiledVFrame) frame).getScope();
+            if (scope != null && !scope.isTop()) {
+                // inlined caller in the same physical frame
+                return new CompiledVFrame((Frame) frame.getFrame().clone(), frame.getRegisterMap(), frame.getThread(),
+                        senderScope(scope), false);
+            }
+        }
+        if (frame.getFrame().isFirstFrame()) {
+            return null;
+        }
+        RegisterMap map = (RegisterMap) frame.getRegisterMap().clone();
+        Frame senderFrame = frame.getFrame().realSender(map);
+        if (senderFrame == null || senderFrame.isFirstFrame()) {
+            return null;
+        }
+        return newVFrame(senderFrame, map, frame.getThread());
+    }
+
+    // refer to VFrame.newVFrame
+    private VFrame newVFrame(Frame frame, RegisterMap map, JavaThread thread) {
+        VM vm = VM.getVM();
+        if (!frame.isInterpretedFrame() && !vm.isCore()) {
+            Address pc = frame.getPC();
+            CodeBlob codeBlob = vm.isDebugging() ? vm.getCodeCache().findBlobUnsafe(pc) : vm.getCodeCache().findBlob(pc);
+            if (codeBlob != null && codeBlob.isNMethod()) {
+                return new CompiledVFrame(frame, map, thread, scope((NMethod) codeBlob, pc), false);
+            }
+        }
+        return VFrame.newVFrame(frame, map, thread, vm.isDebugging(), false);
+    }
+
+    private ScopeDesc scope(NMethod nMethod, Address pc) {
+        Long key = VM.getVM().getDebugger().getAddressValue(pc);
+        ScopeDesc scope = myScopes.get(key);
+        if (scope == null) {
+            scope = VM.getVM().isDebugging() ? nMethod.getScopeDescNearDbg(pc) : nMethod.getScopeDescAt(pc);
+            if (scope != null) {
+                myScopes.putIfAbsent(key, scope);
+            }
+        }
+        return scope;
+    }
+
+    private ScopeDesc senderScope(ScopeDesc scope) {
+        ScopeKey key = new ScopeKey(VM.getVM().getDebugger().getAddressValue(scope.getNMethod().getAddress()),
+                scope.getDecodeOffset());
+        ScopeDesc sender = mySenders.get(key);
+        if (sender == null) {
+            sender = scope.sender();
+            if (sender != null) {
+                mySenders.putIfAbsent(key, sender);
+            }
+        }
+        return sender;
+    }
+
+    private static class ScopeKey {
+        private final long myNMethod;
+        private final int myDecodeOffset;
+
+        ScopeKey(long nMethod, int decodeOffset) {
+            myNMethod = nMethod;
+            myDecodeOffset = decodeOffset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ScopeKey)) return false;
+            ScopeKey key = (ScopeKey) o;
+            return myNMethod == key.myNMethod && myDecodeOffset == key.myDecodeOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (myNMethod ^ (myNMethod >>> 32)) + myDecodeOffset;
+        }
+    }
+}
@@ -54,6 +54,7 @@ public class StackFrameImpl {
     private int id;
     private final LocationImpl location;
     private ObjectReferenceImpl thisObject = null;
+    private StackValueCollection locals; // decoded once, for compiled frames this is a scope descriptor decode
 
     StackFrameImpl(ThreadReferenceImpl thread, JavaVFrame jvf, int id) {
         this.thread = thread;
@@ -114,7 +115,7 @@ public class StackFrameImpl {
             return null;
         }
         if (thisObject == null) {
-            StackValueCollection values = saFrame.getLocals();
+            StackValueCollection values = locals();
             if (Assert.ASSERTS_ENABLED) {
                 Assert.that(values.size() > 0, "this is missing");
             }
@@ -127,13 +128,20 @@ public class StackFrameImpl {
         return thisObject;
     }
 
+    private StackValueCollection locals() {
+        if (locals == null) {
+            locals = saFrame.getLocals();
+        }
+        return locals;
+    }
+
     public int getAvailableSlots() {
-        return saFrame.getLocals().size();
+        return locals().size();
     }
 
     public ValueImpl getSlotValue(int slot, byte sigbyte) {
         BasicType variableType = BasicType.charToBasicType((char) sigbyte);
-        return getSlotValue(saFrame.getLocals(), variableType, slot);
+        return getSlotValue(locals(), variableType, slot);
     }
 
     private ValueImpl getSlotValue(StackValueCollection values, BasicType variableType, int ss) {
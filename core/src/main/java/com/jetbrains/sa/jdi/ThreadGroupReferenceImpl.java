@@ -40,7 +40,6 @@ import com.jetbrains.sa.jdwp.JDWP;
 import sun.jvm.hotspot.oops.Instance;
 import sun.jvm.hotspot.oops.Oop;
 import sun.jvm.hotspot.oops.OopUtilities;
-import sun.jvm.hotspot.runtime.JavaThread;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -60,19 +59,7 @@ public class ThreadGroupReferenceImpl extends ObjectReferenceImpl {
     }
 
     public List<ThreadReferenceImpl> threads() {
-        // Each element of this array is the Oop for a thread;
-        // NOTE it is not the JavaThread that we need to create
-        // a ThreadReferenceImpl.
-        Oop[] myThreads = OopUtilities.threadGroupOopGetThreads(ref());
-
-        ArrayList<ThreadReferenceImpl> myList = new ArrayList<ThreadReferenceImpl>(myThreads.length);
-        for (Oop myThread : myThreads) {
-            JavaThread jt = OopUtilities.threadOopGetJavaThread(myThread);
-            if (jt != null) {
-                myList.add(vm().threadMirror(jt));
-            }
-        }
-        return myList;
+        return new ArrayList<ThreadReferenceImpl>(vm().threadSnapshot().groupThreads(this));
     }
 
     public List<ThreadGroupReferenceImpl> threadGroups() {
@@ -39,16 +39,12 @@ package com.jetbrains.sa.jdi;
 import com.jetbrains.sa.jdwp.JDWP;
 import com.sun.jdi.IncompatibleThreadStateException;
 import com.sun.jdi.ThreadReference;
-import sun.jvm.hotspot.debugger.OopHandle;
 import sun.jvm.hotspot.oops.Instance;
-import sun.jvm.hotspot.oops.ObjectHeap;
 import sun.jvm.hotspot.oops.OopUtilities;
 import sun.jvm.hotspot.runtime.*;
-import sun.jvm.hotspot.utilities.Assert;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
 //import sun.jvm.hotspot.runtime.StackFrameStream;
@@ -57,6 +53,7 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
 
     private JavaThread myJavaThread;
     private ArrayList<StackFrameImpl> frames;    // StackFrames
+    private JavaVFrame nextFrame;                // first frame not yet in frames
     private List<ObjectReferenceImpl> ownedMonitors;
     private List<MonitorInfoImpl> ownedMonitorsInfo; // List<MonitorInfo>
     private ObjectReferenceImpl currentContendingMonitor;
@@ -85,7 +82,8 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
      * it can change via Thread.setName arbitrarily
      */
     public String name() {
-        return OopUtilities.threadOopGetName(ref());
+        ThreadSnapshot.Entry entry = vm().threadSnapshot().get(this);
+        return entry != null ? entry.name : OopUtilities.threadOopGetName(ref());
     }
 
     public int suspendCount() {
@@ -116,6 +114,11 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
     }
 
     public int status() {
+        ThreadSnapshot.Entry entry = vm().threadSnapshot().get(this);
+        return entry != null ? entry.status : computeStatus();
+    }
+
+    int computeStatus() {
         int state = jvmtiGetThreadState();
         int status = ThreadReference.THREAD_STATUS_UNKNOWN;
         // refer to map2jdwpThreadStatus in util.c (back-end)
@@ -140,10 +143,18 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
     }
 
     public ThreadGroupReferenceImpl threadGroup() {
+        ThreadSnapshot.Entry entry = vm().threadSnapshot().get(this);
+        if (entry != null) {
+            return entry.group();
+        }
         return vm().threadGroupMirror((Instance)OopUtilities.threadOopGetThreadGroup(ref()));
     }
 
     public int frameCount() throws IncompatibleThreadStateException { //fixme jjh
+        ThreadSnapshot.Entry entry = vm().threadSnapshot().get(this);
+        if (entry != null && entry.frameCount() >= 0) {
+            return entry.frameCount();
+        }
         privateFrames(0, -1);
         return frames.size();
     }
@@ -156,6 +167,16 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
         return privateFrames(index, 1).get(0);
     }
 
+    /**
+     * @param length number of frames, -1 for all remaining frames (as in JDWP ThreadReference.Frames)
+     */
+    public List<StackFrameImpl> frames(int start, int length) throws IncompatibleThreadStateException  {
+        if (length < -1) {
+            throw new IndexOutOfBoundsException("Invalid frames length " + length);
+        }
+        return privateFrames(start, length);
+    }
+
     /**
      * Private version of frames() allows "-1" to specify all
      * remaining frames.
@@ -167,29 +188,36 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
             // for zombies and yet-to-be-started threads we need to throw exception
             throw new IncompatibleThreadStateException();
         }
+        if (start < 0) {
+            throw new IndexOutOfBoundsException("Invalid frame index " + start);
+        }
+        // long, start + length may overflow
+        long end = length == -1 ? Integer.MAX_VALUE : (long) start + length;
+        // frames are created lazily, only up to the deepest one requested so far
+        walkFrames((int) Math.min(end, Integer.MAX_VALUE));
+
+        if (length == -1) {
+            end = frames.size();
+        }
+        if (start > frames.size() || end > frames.size()) {
+            throw new IndexOutOfBoundsException("Invalid frames range " + start + ", " + length + " for " + frames.size() + " frames");
+        }
+        if (start == end) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(frames.subList(start, (int) end));
+    }
+
+    private void walkFrames(int count) {
         if (frames == null) {
             frames = new ArrayList<StackFrameImpl>(10);
-            JavaVFrame myvf = myJavaThread.getLastJavaVFrameDbg();
-            int id = 0;
-            while (myvf != null) {
-                StackFrameImpl myFrame = new StackFrameImpl(this, myvf, id++);
-                //fixme jjh null should be a Location
-                frames.add(myFrame);
-                myvf = JvmUtils.getFrameJavaSender(myvf);
-            }
+            nextFrame = myJavaThread.getLastJavaVFrameDbg();
         }
-
-        List<StackFrameImpl> retVal;
-        if (frames.size() == 0) {
-            retVal = Collections.emptyList();
-        } else {
-            int toIndex = start + length;
-            if (length == -1) {
-                toIndex = frames.size();
-            }
-            retVal = frames.subList(start, toIndex);
+        while (nextFrame != null && frames.size() < count) {
+            //fixme jjh null should be a Location
+            frames.add(new StackFrameImpl(this, nextFrame, frames.size()));
+            nextFrame = JvmUtils.getFrameJavaSender(vm(), nextFrame);
         }
-        return Collections.unmodifiableList(retVal);
     }
 
     // refer to JvmtiEnvBase::get_owned_monitors
@@ -206,8 +234,11 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
             return ownedMonitors;
         }
 
-        ownedMonitorsWithStackDepth();
+        if (ownedMonitorsInfo == null) {
+            ownedMonitorsWithStackDepth();
+        }
 
+        ownedMonitors = new ArrayList<ObjectReferenceImpl>(ownedMonitorsInfo.size());
         for (MonitorInfoImpl monitorInfo : ownedMonitorsInfo) {
             //FIXME : Change the MonitorInfoImpl cast to com.sun.jdi.MonitorInfo
             //        when hotspot start building with jdk1.6.
@@ -238,72 +269,11 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
     }
 
     private void ownedMonitorsWithStackDepth() {
-
-        ownedMonitorsInfo = new ArrayList<MonitorInfoImpl>();
-        List<OopHandle> lockedObjects = new ArrayList<OopHandle>(); // List<OopHandle>
-        List<Integer> stackDepth = new ArrayList<Integer>(); // List<int>
-        ObjectMonitor waitingMonitor = myJavaThread.getCurrentWaitingMonitor();
-        ObjectMonitor pendingMonitor = myJavaThread.getCurrentPendingMonitor();
-        OopHandle waitingObj = null;
-        if (waitingMonitor != null) {
-            // save object of current wait() call (if any) for later comparison
-            waitingObj = waitingMonitor.object();
-        }
-        OopHandle pendingObj = null;
-        if (pendingMonitor != null) {
-            // save object of current enter() call (if any) for later comparison
-            pendingObj = pendingMonitor.object();
-        }
-
-        JavaVFrame frame = myJavaThread.getLastJavaVFrameDbg();
-        int depth=0;
-        while (frame != null) {
-            for (Object frameMonitor : JvmUtils.getFrameMonitors(frame)) {
-                MonitorInfo mi = (MonitorInfo) frameMonitor;
-                if (mi.eliminated() && frame.isCompiledFrame()) {
-                    continue; // skip eliminated monitor
-                }
-                OopHandle obj = mi.owner();
-                if (obj == null) {
-                    // this monitor doesn't have an owning object so skip it
-                    continue;
-                }
-
-                if (obj.equals(waitingObj)) {
-                    // the thread is waiting on this monitor so it isn't really owned
-                    continue;
-                }
-
-                if (obj.equals(pendingObj)) {
-                    // the thread is pending on this monitor so it isn't really owned
-                    continue;
-                }
-
-                boolean found = false;
-                for (Object lockedObject : lockedObjects) {
-                    // check for recursive locks
-                    if (obj.equals(lockedObject)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (found) {
-                    // already have this object so don't include it
-                    continue;
-                }
-                // add the owning object to our list
-                lockedObjects.add(obj);
-                stackDepth.add(depth);
-            }
-            frame = JvmUtils.getFrameJavaSender(frame);
-            depth++;
-        }
-
-        // now convert List<OopHandle> to List<ObjectReference>
-        ObjectHeap heap = vm().saObjectHeap();
-        Iterator<Integer> stk = stackDepth.iterator();
-        for (OopHandle lockedObject : lockedObjects) {
-            ownedMonitorsInfo.add(new MonitorInfoImpl(vm().objectMirror(lockedObject), this, stk.next()));
+        List<MonitorIndex.OwnedMonitor> owned = vm().monitorIndex().ownedMonitors(this);
+        ownedMonitorsInfo = new ArrayList<MonitorInfoImpl>(owned.size());
+        // now convert OopHandles to ObjectReferences
+        for (MonitorIndex.OwnedMonitor monitor : owned) {
+            ownedMonitorsInfo.add(new MonitorInfoImpl(vm().objectMirror(monitor.object), this, monitor.stackDepth));
         }
     }
 
@@ -317,27 +287,10 @@ public class ThreadReferenceImpl extends ObjectReferenceImpl implements /* impor
         if (myJavaThread == null) {
            throw new IncompatibleThreadStateException();
         }
-        ObjectMonitor mon = myJavaThread.getCurrentWaitingMonitor();
-        if (mon == null) {
-           // thread is not doing an Object.wait() call
-           mon = myJavaThread.getCurrentPendingMonitor();
-           if (mon != null) {
-               OopHandle handle = mon.object();
-               // If obj == NULL, then ObjectMonitor is raw which doesn't count
-               // as contended for this API
-               return vm().objectMirror(handle);
-           } else {
-               // no contended ObjectMonitor
-               return null;
-           }
-        } else {
-           // thread is doing an Object.wait() call
-           OopHandle handle = mon.object();
-           if (Assert.ASSERTS_ENABLED) {
-               Assert.that(handle != null, "Object.wait() should have an object");
-           }
-           return vm().objectMirror(handle);
-        }
+        // the object of the current Object.wait() call, or of the pending enter() call.
+        // If obj == NULL, then ObjectMonitor is raw which doesn't count
+        // as contended for this API
+        return vm().objectMirror(vm().monitorIndex().contendedMonitor(this));
     }
 
     public String toString() {
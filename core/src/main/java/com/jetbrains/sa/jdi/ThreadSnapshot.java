@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.oops.BooleanField;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.Instance;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopUtilities;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.JavaVFrame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable table of all threads, computed once: the target can not change while attached.
+ * The per-thread data is read on the calling thread, as it comes from the SA object model (see {@link ConcurrencyUtils}).
+ * Stacks are not walked to build the table, frame counts are computed per thread when they are first asked for.
+ */
+public class ThreadSnapshot {
+    public static class Entry {
+        public final ThreadReferenceImpl thread;
+        public final String name;
+        public final int status;
+        public final boolean daemon;
+        private final Oop groupOop;
+        private ThreadGroupReferenceImpl group;
+        private int frameCount = FRAME_COUNT_UNKNOWN;
+
+        private Entry(ThreadReferenceImpl thread, String name, int status, boolean daemon, Oop groupOop) {
+            this.thread = thread;
+            this.name = name;
+            this.status = status;
+            this.daemon = daemon;
+            this.groupOop = groupOop;
+        }
+
+        public ThreadGroupReferenceImpl group() {
+            return group;
+        }
+
+        /**
+         * Walks the stack of the thread on the first call
+         * @return -1 if the thread has no java frames available (not started or terminated)
+         */
+        public int frameCount() {
+            if (frameCount == FRAME_COUNT_UNKNOWN) {
+                frameCount = countFrames(thread);
+            }
+            return frameCount;
+        }
+    }
+
+    private static final int FRAME_COUNT_UNKNOWN = -2;
+
+    private final List<Entry> myEntries;
+    private final Map<Long, Entry> myEntriesById = new HashMap<Long, Entry>();
+    private final Map<Long, ThreadGroupReferenceImpl> myGroupsById = new LinkedHashMap<Long, ThreadGroupReferenceImpl>();
+    private final Map<Long, List<ThreadReferenceImpl>> myGroupThreads = new HashMap<Long, List<ThreadReferenceImpl>>();
+    // OopUtilities.threadOopGetDaemon is not available in older SA versions
+    private final Field myDaemonField;
+
+    ThreadSnapshot(VirtualMachineImpl vm, List<ThreadReferenceImpl> threads) {
+        myDaemonField = threads.isEmpty() ? null : ((InstanceKlass) threads.get(0).ref().getKlass()).findField("daemon", "Z");
+        List<Entry> entries = new ArrayList<Entry>(threads.size());
+        for (ThreadReferenceImpl thread : threads) {
+            entries.add(read(thread));
+        }
+        myEntries = Collections.unmodifiableList(entries);
+
+        for (Entry entry : myEntries) {
+            myEntriesById.put(entry.thread.uniqueID(), entry);
+            entry.group = vm.threadGroupMirror((Instance) entry.groupOop);
+            if (entry.group != null) {
+                long groupId = entry.group.uniqueID();
+                List<ThreadReferenceImpl> groupThreads = myGroupThreads.get(groupId);
+                if (groupThreads == null) {
+                    groupThreads = new ArrayList<ThreadReferenceImpl>();
+                    myGroupThreads.put(groupId, groupThreads);
+                }
+                groupThreads.add(entry.thread);
+                // register the group with all its parents
+                for (ThreadGroupReferenceImpl group = entry.group;
+                     group != null && !myGroupsById.containsKey(group.uniqueID());
+                     group = group.parent()) {
+                    myGroupsById.put(group.uniqueID(), group);
+                }
+            }
+        }
+    }
+
+    private Entry read(ThreadReferenceImpl thread) {
+        Oop threadOop = thread.ref();
+        return new Entry(thread,
+                OopUtilities.threadOopGetName(threadOop),
+                thread.computeStatus(),
+                myDaemonField instanceof BooleanField && ((BooleanField) myDaemonField).getValue(threadOop),
+                OopUtilities.threadOopGetThreadGroup(threadOop));
+    }
+
+    // counts vframes without creating frame mirrors
+    private static int countFrames(ThreadReferenceImpl thread) {
+        JavaThread javaThread = thread.getJavaThread();
+        if (javaThread == null) {
+            return -1;
+        }
+        int res = 0;
+        for (JavaVFrame frame = javaThread.getLastJavaVFrameDbg();
+             frame != null;
+             frame = JvmUtils.getFrameJavaSender(thread.vm(), frame)) {
+            res++;
+        }
+        return res;
+    }
+
+    public List<Entry> entries() {
+        return myEntries;
+    }
+
+    /**
+     * @return null for threads not in the snapshot (hidden or not started)
+     */
+    public Entry get(ThreadReferenceImpl thread) {
+        return myEntriesById.get(thread.uniqueID());
+    }
+
+    Entry get(long threadId) {
+        return myEntriesById.get(threadId);
+    }
+
+    ThreadGroupReferenceImpl getGroup(long groupId) {
+        return myGroupsById.get(groupId);
+    }
+
+    List<ThreadReferenceImpl> groupThreads(ThreadGroupReferenceImpl group) {
+        List<ThreadReferenceImpl> threads = myGroupThreads.get(group.uniqueID());
+        return threads != null ? threads : Collections.<ThreadReferenceImpl>emptyList();
+    }
+
+    List<ThreadGroupReferenceImpl> topLevelGroups() {
+        for (ThreadGroupReferenceImpl group : myGroupsById.values()) {
+            if (group.parent() == null) {
+                return Collections.singletonList(group);
+            }
+        }
+        return Collections.emptyList();
+    }
+}
@@ -60,6 +60,7 @@ public class VirtualMachineImpl {
     private Universe         saUniverse;
     private SystemDictionary saSystemDictionary;
     private ObjectHeap       saObjectHeap;
+    private String           coreFileName;
 
     VM saVM() {
         return saVM;
@@ -95,7 +96,12 @@ public class VirtualMachineImpl {
     private boolean   retrievedAllTypes = false;
     private List<ReferenceTypeImpl>      bootstrapClasses;      // all bootstrap classes
     private ArrayList<ThreadReferenceImpl> allThreads;
-    private ArrayList<ThreadGroupReferenceImpl> topLevelGroups;
+    private ThreadSnapshot threadSnapshot;
+    private MonitorIndex monitorIndex;
+    private HeapScanner heapScanner;
+    // tens of bytes per object, kept while the memory allows and computed again otherwise
+    private SoftReference<HeapGraph> heapGraph;
+    final ScopeDescCache scopeDescCache = new ScopeDescCache();
     final   int       sequenceNumber;
 
     // ObjectReference cache
@@ -107,7 +113,7 @@ public class VirtualMachineImpl {
     private final String javaLangString = "java/lang/String";
     private final String javaLangThread = "java/lang/Thread";
     private final String javaLangThreadGroup = "java/lang/ThreadGroup";
-    private final String javaLangClass = "java/lang/Class";
+    final String javaLangClass = "java/lang/Class";
     private final String javaLangClassLoader = "java/lang/ClassLoader";
 
     // used in ReferenceTypeImpl.isThrowableBacktraceField
@@ -142,6 +148,7 @@ public class VirtualMachineImpl {
         try {
             myvm.saAgent.attach(javaExecutableName, coreFileName);
             myvm.init();
+            myvm.coreFileName = coreFileName;
         } catch (Exception ee) {
             myvm.saAgent.detach();
             throw ee;
@@ -305,18 +312,40 @@ public class VirtualMachineImpl {
         // only one top level thread group.  There will be a thread in this
         // group so we will just find a thread whose threadgroup has no parent
         // and that will be it.
+        return threadSnapshot().topLevelGroups();
+    }
 
-        if (topLevelGroups == null) {
-            topLevelGroups = new ArrayList<ThreadGroupReferenceImpl>(1);
-            for (ThreadReferenceImpl threadReference : getAllThreads()) {
-                ThreadGroupReferenceImpl myGroup = threadReference.threadGroup();
-                if (myGroup.parent() == null) {
-                    topLevelGroups.add(myGroup);
-                    break;
-                }
-            }
+    /**
+     * All threads data is read once, the target can not change while attached
+     */
+    public ThreadSnapshot threadSnapshot() {
+        if (threadSnapshot == null) {
+            threadSnapshot = new ThreadSnapshot(this, getAllThreads());
+        }
+        return threadSnapshot;
+    }
+
+    MonitorIndex monitorIndex() {
+        if (monitorIndex == null) {
+            monitorIndex = new MonitorIndex(this, getAllThreads());
+        }
+        return monitorIndex;
+    }
+
+    HeapScanner heapScanner() {
+        if (heapScanner == null) {
+            heapScanner = new HeapScanner(this);
         }
-        return  Collections.unmodifiableList(topLevelGroups);
+        return heapScanner;
+    }
+
+    public HeapGraph heapGraph() {
+        HeapGraph graph = heapGraph != null ? heapGraph.get() : null;
+        if (graph == null) {
+            graph = new HeapGraph(this);
+            heapGraph = new SoftReference<HeapGraph>(graph);
+        }
+        return graph;
     }
 
     public BooleanValueImpl mirrorOf(boolean value) {
@@ -351,6 +380,13 @@ public class VirtualMachineImpl {
         return new DoubleValueImpl(value);
     }
 
+    /**
+     * @return the core file this vm was attached to, or null for a live process
+     */
+    public String coreFileName() {
+        return coreFileName;
+    }
+
     public void dispose() {
         saAgent.detach();
 //        notifyDispose();
@@ -372,17 +408,17 @@ public class VirtualMachineImpl {
         return true;
     }
 
-    // FIXME: For now, all monitor capabilities are disabled
+    // monitor info comes from the MonitorIndex built in one pass over all threads
     public boolean canGetOwnedMonitorInfo() {
-        return false;
+        return true;
     }
 
     public boolean canGetCurrentContendedMonitor() {
-        return false;
+        return true;
     }
 
     public boolean canGetMonitorInfo() {
-        return false;
+        return true;
     }
 
     public boolean canUseInstanceFilters() {
@@ -406,12 +442,12 @@ public class VirtualMachineImpl {
     }
 
     public boolean canGetSourceDebugExtension() {
-        // We can use InstanceKlass.getSourceDebugExtension only if
-        // ClassFileParser parsed the info. But, ClassFileParser parses
-        // SourceDebugExtension attribute only if corresponding JVMDI/TI
-        // capability is set to true. Currently, vmStructs does not expose
-        // JVMDI/TI capabilities and hence we conservatively assume false.
-        return false;
+        // InstanceKlass.getSourceDebugExtension is only set if
+        // ClassFileParser parsed the info, which it does only if corresponding
+        // JVMDI/TI capability is set to true. vmStructs does not expose
+        // JVMDI/TI capabilities, but a missing attribute is reported as
+        // absent information per class, so we can always claim the capability.
+        return true;
     }
 
     public boolean canRequestVMDeathEvent() {
@@ -463,12 +499,12 @@ public class VirtualMachineImpl {
         }
 
         int size = classes.size();
-        final Map<Address, Long> instanceMap = new HashMap<Address, Long>(size);
+        final long[] klasses = new long[size];
 
         boolean allAbstractClasses = true;
-        for (Object aClass : classes) {
-            ReferenceTypeImpl rti = (ReferenceTypeImpl) aClass;
-            instanceMap.put(CompatibilityHelper.INSTANCE.getAddress(rti.ref()), 0L);
+        for (int i = 0; i < size; i++) {
+            ReferenceTypeImpl rti = classes.get(i);
+            klasses[i] = getAddressValue(CompatibilityHelper.INSTANCE.getAddress(rti.ref()));
             if (!(rti.isAbstract() || (rti instanceof InterfaceTypeImpl))) {
                 allAbstractClasses = false;
             }
@@ -478,25 +514,39 @@ public class VirtualMachineImpl {
             return new long[size];
         }
 
-        saObjectHeap.iterate(new DefaultHeapVisitor() {
-            public boolean doObj(Oop oop) {
-                Address klassAddress = CompatibilityHelper.INSTANCE.getKlassAddress(oop);
-                Long current = instanceMap.get(klassAddress);
-                if (current != null) {
-                    instanceMap.put(klassAddress, current + 1);
-                }
-                return false;
+        // counters keyed by raw klass addresses, nothing is allocated per heap object
+        List<KlassCounter> counters = heapScanner().scanParallel(new HeapScanner.VisitorFactory<KlassCounter>() {
+            public KlassCounter create() {
+                return new KlassCounter(klasses);
             }
         });
 
         final long[] retValue = new long[size] ;
         for (int i = 0; i < retValue.length; i++) {
-            retValue[i] = instanceMap.get(CompatibilityHelper.INSTANCE.getAddress(classes.get(i).ref()));
+            for (KlassCounter counter : counters) {
+                retValue[i] += counter.counts.get(klasses[i]);
+            }
         }
 
         return retValue;
     }
 
+    private static class KlassCounter implements HeapScanner.ObjectVisitor {
+        final LongCounter counts;
+
+        KlassCounter(long[] klasses) {
+            counts = new LongCounter(klasses.length);
+            for (long klass : klasses) {
+                counts.put(klass);
+            }
+        }
+
+        public boolean visit(long address, long klass, long size) {
+            counts.addIfPresent(klass, 1);
+            return false;
+        }
+    }
+
     private List<String> getPath (String pathName) {
         String cp = saVM.getSystemProperty(pathName);
         if (cp == null) {
@@ -739,16 +789,20 @@ public class VirtualMachineImpl {
    }
 
     public ThreadReferenceImpl getThreadById(long id) {
-        for (ThreadReferenceImpl thread : allThreads()) {
-            if (thread.uniqueID() == id) {
-                return thread;
-            }
+        ThreadSnapshot.Entry entry = threadSnapshot().get(id);
+        if (entry != null) {
+            return entry.thread;
         }
         throw new IllegalStateException("Thread with id " + id + " not found");
     }
 
     public ReferenceTypeImpl getReferenceTypeById(long id) {
         ReferenceTypeImpl res = typesById.get(id);
+        if (res == null && !retrievedAllTypes) {
+            // the id may come from a cached reply, the types are not registered until all classes are retrieved
+            allClasses();
+            res = typesById.get(id);
+        }
         if (res == null) {
             throw new IllegalStateException("ReferenceType with id " + id + " not found");
         }
@@ -756,11 +810,9 @@ public class VirtualMachineImpl {
     }
 
     public ThreadGroupReferenceImpl getThreadGroupReferenceById(long id) {
-        for (ThreadReferenceImpl thread : allThreads()) {
-            ThreadGroupReferenceImpl threadGroup = thread.threadGroup();
-            if (threadGroup.uniqueID() == id) {
-                return threadGroup;
-            }
+        ThreadGroupReferenceImpl threadGroup = threadSnapshot().getGroup(id);
+        if (threadGroup != null) {
+            return threadGroup;
         }
         throw new IllegalStateException("ThreadGroup with id " + id + " not found");
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.sun.jdi.connect.spi.Connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Standalone client of the {@link JDWPExtensions.Batch} command set, for tools that talk raw JDWP to the server.
+ * JDI does not allow sending custom packets and reads every packet of its connection itself,
+ * so this can not be used on the connection of a JDI VirtualMachine: the caller opens its own {@link Connection}
+ * (handshake done) and reads it only through this class while a batch is in flight.
+ */
+public class BatchClient {
+    private static final AtomicInteger ourNextId = new AtomicInteger(1);
+
+    // do not allow instance creation
+    private BatchClient() {
+    }
+
+    public static class Request {
+        public final int cmdSet;
+        public final int cmd;
+        public final byte[] data;
+
+        public Request(int cmdSet, int cmd, byte[] data) {
+            this.cmdSet = cmdSet;
+            this.cmd = cmd;
+            this.data = data;
+        }
+    }
+
+    public static class Reply {
+        public final int errorCode;
+        public final byte[] data;
+
+        public Reply(int errorCode, byte[] data) {
+            this.errorCode = errorCode;
+            this.data = data;
+        }
+    }
+
+    public static byte[] encode(List<Request> requests) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(requests.size());
+            for (Request request : requests) {
+                out.writeByte(request.cmdSet);
+                out.writeByte(request.cmd);
+                out.writeInt(request.data.length);
+                out.write(request.data);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not possible for in memory stream
+        }
+    }
+
+    public static List<Reply> decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        List<Reply> replies = new ArrayList<Reply>(count);
+        for (int i = 0; i < count; i++) {
+            int errorCode = in.readShort();
+            byte[] replyData = new byte[in.readInt()];
+            in.readFully(replyData);
+            replies.add(new Reply(errorCode, replyData));
+        }
+        return replies;
+    }
+
+    /**
+     * Sends the requests in one batch packet and waits for the reply.
+     * The connection must not be read by anyone else until this returns: packets read meanwhile which are not
+     * the reply (events, replies to other commands the caller sent) are added to otherPackets
+     * in the order received, the caller has to dispatch them.
+     */
+    public static List<Reply> execute(Connection connection, List<Request> requests, List<byte[]> otherPackets)
+            throws IOException {
+        Packet packet = new Packet();
+        packet.id = ourNextId.getAndIncrement();
+        packet.flags = Packet.NoFlags;
+        packet.cmdSet = JDWPExtensions.Batch.COMMAND_SET;
+        packet.cmd = JDWPExtensions.Batch.Execute.COMMAND;
+        packet.data = encode(requests);
+        connection.writePacket(packet.toByteArray());
+        while (true) {
+            byte[] bytes = connection.readPacket();
+            Packet reply = Packet.fromByteArray(bytes);
+            if ((reply.flags & Packet.Reply) != 0 && reply.id == packet.id) {
+                if (reply.errorCode != Packet.ReplyNoError) {
+                    throw new IOException("Batch command failed with error " + reply.errorCode);
+                }
+                return decode(reply.data);
+            }
+            otherPackets.add(bytes);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent tier of the {@link ReplyCache} for core file sessions.
+ * Replies are appended to a file next to the core (or in the temp dir if that is not writable),
+ * the file is only reused if it was written for the same core content, the same JDK build and the same sa-jdwp build.
+ * Entries that existed on open are served from a memory mapping of the file, in windows so that files over 2GB can be mapped.
+ * The file grows up to a size budget ({@code sa.jdwp.reply.cache.disk.size}), entries over {@link #MAX_ENTRY_SIZE} are not stored,
+ * the memory tier still keeps them.
+ * <p>
+ * File format: header (magic, format version, fingerprint, end of the committed entries), then entries of
+ * (command, request length, request, reply length, reply). The end is updated after an entry is completely written,
+ * so anything after it is an interrupted write and is overwritten by the next entry.
+ */
+class DiskReplyCache {
+    static final long DEFAULT_SIZE = 1024L * 1024 * 1024;
+    static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+    private static final int MAGIC = 0x53414a43; // SAJC
+    private static final int FORMAT_VERSION = 1;
+    // increment when the reply of a cached command changes, the jar version is not known when running from classes
+    private static final int REPLIES_VERSION = 1;
+    private static final int FINGERPRINT_SIZE = 16;
+    private static final int END_OFFSET = 8 + FINGERPRINT_SIZE;
+    private static final int HEADER_SIZE = END_OFFSET + 8;
+
+    // content fingerprint: head and tail of the core plus evenly distributed samples
+    private static final int EDGE_SIZE = 1024 * 1024;
+    private static final int SAMPLES_COUNT = 64;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    // windows overlap by the max entry size, so an entry always fits in the window it starts in
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+    private final RandomAccessFile myFile;
+    private final FileChannel myChannel;
+    private final FileLock myLock;
+    private final long myMaxSize;
+    private final MappedByteBuffer[] myWindows;
+    private final long myMappedEnd;
+    private final Map<ReplyCache.Key, Long> myReplyOffsets = new HashMap<ReplyCache.Key, Long>();
+    private long myEnd;
+    private boolean myFailed = false;
+
+    private DiskReplyCache(RandomAccessFile file, FileLock lock, byte[] fingerprint, long maxSize) throws IOException {
+        myFile = file;
+        myChannel = file.getChannel();
+        myLock = lock;
+        myMaxSize = maxSize;
+        long end = readHeader(fingerprint);
+        if (end >= HEADER_SIZE && end <= myChannel.size()) {
+            myWindows = new MappedByteBuffer[(int) ((end + WINDOW_MASK) >>> WINDOW_SHIFT)];
+            for (int i = 0; i < myWindows.length; i++) {
+                long start = (long) i << WINDOW_SHIFT;
+                myWindows[i] = myChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_MASK + 1 + MAX_ENTRY_SIZE, end - start));
+            }
+            myMappedEnd = end;
+            readIndex(end);
+            myEnd = end;
+        } else {
+            myChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).put(fingerprint).putLong(HEADER_SIZE).flip();
+            writeFully(header, 0);
+            myWindows = new MappedByteBuffer[0];
+            myMappedEnd = 0;
+            myEnd = HEADER_SIZE;
+        }
+    }
+
+    /**
+     * @param maxSize the size budget of the file, it is not written any more once full
+     * @return the cache for the core file, or null if it can not be used (i.e. it is locked by another session)
+     */
+    static DiskReplyCache open(String coreFileName, String vmName, long maxSize) {
+        RandomAccessFile file = null;
+        try {
+            File core = new File(coreFileName);
+            byte[] fingerprint = fingerprint(core, vmName);
+            File cacheFile = new File(core.getPath() + ".sajdwp");
+            File dir = core.getAbsoluteFile().getParentFile();
+            if (cacheFile.exists() ? !cacheFile.canWrite() : (dir == null || !dir.canWrite())) {
+                cacheFile = new File(System.getProperty("java.io.tmpdir"), "sajdwp-" + toHex(fingerprint) + ".cache");
+            }
+            file = new RandomAccessFile(cacheFile, "rw");
+            FileLock lock;
+            try {
+                lock = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                file.close();
+                return null;
+            }
+            return new DiskReplyCache(file, lock, fingerprint, maxSize);
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    byte[] get(ReplyCache.Key key) {
+        Long offset = myReplyOffsets.get(key);
+        if (offset == null || myFailed) {
+            return null;
+        }
+        try {
+            long pos = offset;
+            byte[] reply = new byte[read(pos, 4).getInt()];
+            read(pos + 4, reply.length).get(reply);
+            return reply;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    void put(ReplyCache.Key key, byte[] reply) {
+        if (myFailed || myReplyOffsets.containsKey(key)) {
+            return;
+        }
+        byte[] request = key.myRequest;
+        long size = 12L + request.length + reply.length;
+        if (size > MAX_ENTRY_SIZE || myEnd + size > myMaxSize) {
+            return;
+        }
+        ByteBuffer entry = ByteBuffer.allocate((int) size);
+        entry.putInt(key.myCommand).putInt(request.length).put(request).putInt(reply.length).put(reply).flip();
+        long end = myEnd + entry.limit();
+        try {
+            writeFully(entry, myEnd);
+            writeFully((ByteBuffer) ByteBuffer.allocate(8).putLong(end).flip(), END_OFFSET);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        myReplyOffsets.put(key, myEnd + 8 + request.length);
+        myEnd = end;
+    }
+
+    void close() {
+        try {
+            myLock.release();
+            myFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the end of the committed entries, or -1 if the file was written for another core or in another format
+     */
+    private long readHeader(byte[] fingerprint) throws IOException {
+        if (myChannel.size() < HEADER_SIZE) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            return -1;
+        }
+        byte[] stored = new byte[FINGERPRINT_SIZE];
+        header.get(stored);
+        return MessageDigest.isEqual(stored, fingerprint) ? header.getLong() : -1;
+    }
+
+    private void readIndex(long end) throws IOException {
+        long position = HEADER_SIZE;
+        while (end - position >= 8) {
+            ByteBuffer header = read(position, 8);
+            int command = header.getInt();
+            int requestLength = header.getInt();
+            position += 8;
+            if (requestLength < 0 || end - position < requestLength + 4L) {
+                break;
+            }
+            byte[] request = new byte[requestLength];
+            read(position, requestLength).get(request);
+            position += requestLength;
+            long replyOffset = position;
+            int replyLength = read(position, 4).getInt();
+            position += 4;
+            if (replyLength < 0 || end - position < replyLength) {
+                break;
+            }
+            position += replyLength;
+            myReplyOffsets.put(new ReplyCache.Key(command, request), replyOffset);
+        }
+    }
+
+    /**
+     * @return the bytes at the position, from the mapping if they are committed on open, otherwise read from the file
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position + length <= myMappedEnd) {
+            MappedByteBuffer window = myWindows[(int) (position >>> WINDOW_SHIFT)];
+            int start = (int) (position & WINDOW_MASK);
+            // entries written by an older build may be larger than the windows overlap
+            if (start + length <= window.limit()) {
+                ByteBuffer buffer = window.duplicate();
+                buffer.position(start);
+                buffer.limit(start + length);
+                return buffer.slice();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = myChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of the reply cache file");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            myChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void fail(IOException e) {
+        e.printStackTrace();
+        myFailed = true;
+    }
+
+    private static byte[] fingerprint(File core, String vmName) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(vmName.getBytes("UTF-8"));
+        String buildVersion = DiskReplyCache.class.getPackage().getImplementationVersion();
+        digest.update(String.valueOf(buildVersion).getBytes("UTF-8"));
+        digest.update(ByteBuffer.allocate(4).putInt(REPLIES_VERSION).array());
+        long length = core.length();
+        digest.update(ByteBuffer.allocate(8).putLong(length).array());
+        RandomAccessFile file = new RandomAccessFile(core, "r");
+        try {
+            byte[] buffer = new byte[EDGE_SIZE];
+            digestRange(file, digest, buffer, 0, EDGE_SIZE);
+            long step = length / (SAMPLES_COUNT + 1);
+            for (int i = 1; i <= SAMPLES_COUNT; i++) {
+                digestRange(file, digest, buffer, step * i, SAMPLE_SIZE);
+            }
+            digestRange(file, digest, buffer, length - EDGE_SIZE, EDGE_SIZE);
+        } finally {
+            file.close();
+        }
+        return digest.digest();
+    }
+
+    private static void digestRange(RandomAccessFile file, MessageDigest digest, byte[] buffer, long start, int size)
+            throws IOException {
+        start = Math.max(0, start);
+        int length = (int) Math.min(size, file.length() - start);
+        if (length > 0) {
+            file.seek(start);
+            file.readFully(buffer, 0, length);
+            digest.update(buffer, 0, length);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder res = new StringBuilder();
+        for (byte b : bytes) {
+            res.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return res.toString();
+    }
+}
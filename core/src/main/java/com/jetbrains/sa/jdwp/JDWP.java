@@ -292,7 +292,7 @@ public class JDWP {
          * this VirtualMachine (ObjectReferences, ReferenceTypes, etc.)
          * will become invalid.
          */
-        static class Dispose implements Command  {
+        static class Dispose implements UncachedCommand  {
             static final int COMMAND = 6;
 
 
@@ -360,7 +360,7 @@ public class JDWP {
          * or the <a href="#JDWP_ThreadReference_Resume">thread-level resume</a> command
          * the same number of times it has been suspended.
          */
-        static class Suspend implements Command  {
+        static class Suspend implements UncachedCommand  {
             static final int COMMAND = 8;
 
 
@@ -375,7 +375,7 @@ public class JDWP {
          * counted. If a particular thread is suspended n times, it must
          * resumed n times before it will continue.
          */
-        static class Resume implements Command  {
+        static class Resume implements UncachedCommand  {
             static final int COMMAND = 9;
 
 
@@ -392,7 +392,7 @@ public class JDWP {
          * A thread death exception is not thrown and
          * finally blocks are not run.
          */
-        static class Exit implements Command  {
+        static class Exit implements UncachedCommand  {
             static final int COMMAND = 10;
 
 
@@ -404,7 +404,7 @@ public class JDWP {
          * Creates a new string object in the target VM and returns
          * its id.
          */
-        static class CreateString implements Command  {
+        static class CreateString implements UncachedCommand  {
             static final int COMMAND = 11;
 
 
@@ -567,7 +567,7 @@ public class JDWP {
          * a back-end may use any implementation which operates
          * equivalently.
          */
-        static class DisposeObjects implements Command  {
+        static class DisposeObjects implements UncachedCommand  {
             static final int COMMAND = 14;
 
 
@@ -588,7 +588,7 @@ public class JDWP {
          * command. If events are already being held, this command is
          * ignored.
          */
-        static class HoldEvents implements Command  {
+        static class HoldEvents implements UncachedCommand  {
             static final int COMMAND = 15;
 
 
@@ -602,7 +602,7 @@ public class JDWP {
          * there is no current HoldEvents command in effect, this command is
          * ignored.
          */
-        static class ReleaseEvents implements Command  {
+        static class ReleaseEvents implements UncachedCommand  {
             static final int COMMAND = 16;
 
 
@@ -891,7 +891,7 @@ public class JDWP {
          * Set the default stratum. Requires canSetDefaultStratum capability - see
          * <a href="#JDWP_VirtualMachine_CapabilitiesNew">CapabilitiesNew</a>.
          */
-        static class SetDefaultStratum implements Command  {
+        static class SetDefaultStratum implements UncachedCommand  {
             static final int COMMAND = 19;
 
 
@@ -985,7 +985,7 @@ public class JDWP {
          * <p>Since JDWP version 1.6. Requires canGetInstanceInfo capability - see
          * <a href="#JDWP_VirtualMachine_CapabilitiesNew">CapabilitiesNew</a>.
          */
-        static class InstanceCounts implements Command  {
+        static class InstanceCounts implements MemoryCachedCommand  {
             static final int COMMAND = 21;
 
 
@@ -1687,7 +1687,7 @@ public class JDWP {
          * <p>Since JDWP version 1.6. Requires canGetInstanceInfo capability - see
          * <a href="#JDWP_VirtualMachine_CapabilitiesNew">CapabilitiesNew</a>.
          */
-        static class Instances implements Command  {
+        static class Instances implements MemoryCachedCommand  {
             static final int COMMAND = 16;
 
 
@@ -1763,13 +1763,12 @@ public class JDWP {
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 ReferenceTypeImpl type = command.readReferenceType();
-                byte[] bytes = type.constantPool();
                 //count = answer.readInt();
                 answer.writeInt(type.constantPoolCount());
 //                //int bytesCount = answer.readInt();
-                answer.writeInt(bytes.length);
+                answer.writeInt(type.constantPoolLength());
                 //bytes = new byte[bytesCount];
-                answer.writeByteArray(bytes);
+                type.writeConstantPool(answer.dataStream);
                 //for (int i = 0; i < bytesCount; i++) {;
                     //bytes[i] = answer.readByte();
                 //}
@@ -2164,10 +2163,13 @@ public class JDWP {
                     answer.pkt.errorCode = Error.NATIVE_METHOD;
                     return;
                 }
+                write(method, vm, answer);
+            }
 
+            static void write(MethodImpl method, VirtualMachineImpl vm, PacketStream answer) {
                 List<LocationImpl> locations = Collections.emptyList();
                 try {
-                    locations = method.allLineLocations();
+                    locations = method.baseLineLocations();
                 } catch (AbsentInformationException ignored) {
                 }
                 sun.jvm.hotspot.oops.Method ref = method.ref();
@@ -2186,7 +2188,7 @@ public class JDWP {
                     //lineCodeIndex = answer.readLong();
                     answer.writeLong(location.codeIndex());
                     //lineNumber = answer.readInt();
-                    answer.writeInt(location.lineNumber());
+                    answer.writeInt(location.baseLineNumber());
                 }
                 //lines = new LineInfo[linesCount];
                 //for (int i = 0; i < linesCount; i++) {;
@@ -2309,9 +2311,8 @@ public class JDWP {
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 ReferenceTypeImpl referenceType = command.readReferenceType();
                 MethodImpl method = referenceType.methodById(command.readMethodRef());
-                byte[] bytecodes = method.bytecodes();
-                answer.writeInt(bytecodes.length);
-                answer.writeByteArray(bytecodes);
+                answer.writeInt(method.bytecodesLength());
+                method.writeBytecodes(answer.dataStream);
 //                //int bytesCount = answer.readInt();
                 //bytes = new byte[bytesCount];
                 //for (int i = 0; i < bytesCount; i++) {;
@@ -2434,23 +2435,26 @@ public class JDWP {
                 ReferenceTypeImpl referenceType = command.readReferenceType();
                 MethodImpl method = referenceType.methodById(command.readMethodRef());
                 try {
-                    List<LocalVariableImpl> variables = method.variables();
-                    //argCnt = answer.readInt();
-                    answer.writeInt(method.argSlotCount());
-                    //int slotsCount = answer.readInt();
-                    answer.writeInt(variables.size());
-                    for (LocalVariableImpl variable : variables) {
-                        SlotInfo.write(variable, vm, answer);
-                    }
-                    //slots = new SlotInfo[slotsCount];
-                    //for (int i = 0; i < slotsCount; i++) {;
-                    //slots[i] = new SlotInfo(vm, ps);
-                    //}
-
+                    write(method, vm, answer);
                 } catch (AbsentInformationException e) {
                     answer.pkt.errorCode = Error.ABSENT_INFORMATION;
                 }
             }
+
+            static void write(MethodImpl method, VirtualMachineImpl vm, PacketStream answer) throws AbsentInformationException {
+                List<LocalVariableImpl> variables = method.variables();
+                //argCnt = answer.readInt();
+                answer.writeInt(method.argSlotCount());
+                //int slotsCount = answer.readInt();
+                answer.writeInt(variables.size());
+                for (LocalVariableImpl variable : variables) {
+                    SlotInfo.write(variable, vm, answer);
+                }
+                //slots = new SlotInfo[slotsCount];
+                //for (int i = 0; i < slotsCount; i++) {;
+                //slots[i] = new SlotInfo(vm, ps);
+                //}
+            }
         }
     }
 
@@ -2691,7 +2695,7 @@ public class JDWP {
          * consequently, may result in application behavior under the
          * debugger that differs from its non-debugged behavior.
          */
-        static class DisableCollection implements Command  {
+        static class DisableCollection implements UncachedCommand  {
             static final int COMMAND = 7;
 
 
@@ -2708,7 +2712,7 @@ public class JDWP {
          * the <a href="#JDWP_ObjectReference_DisableCollection">DisableCollection</a>
          * command.
          */
-        static class EnableCollection implements Command  {
+        static class EnableCollection implements UncachedCommand  {
             static final int COMMAND = 8;
 
 
@@ -2746,7 +2750,7 @@ public class JDWP {
          * <p>Since JDWP version 1.6. Requires canGetInstanceInfo capability - see
          * <a href="#JDWP_VirtualMachine_CapabilitiesNew">CapabilitiesNew</a>.
          */
-        static class ReferringObjects implements Command  {
+        static class ReferringObjects implements MemoryCachedCommand  {
             static final int COMMAND = 10;
 
 
@@ -2959,8 +2963,10 @@ public class JDWP {
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 ThreadReferenceImpl thread = command.readThreadReference();
+                int startFrame = command.readInt();
+                int length = command.readInt();
                 try {
-                    List<StackFrameImpl> frames = thread.frames();
+                    List<StackFrameImpl> frames = thread.frames(startFrame, length);
 //                //int framesCount = answer.readInt();
                     answer.writeInt(frames.size());
                     for (StackFrameImpl frame : frames) {
@@ -2972,6 +2978,8 @@ public class JDWP {
                     //}
                 } catch (IncompatibleThreadStateException e) {
                     answer.pkt.errorCode = Error.INVALID_THREAD;
+                } catch (IndexOutOfBoundsException e) {
+                    answer.pkt.errorCode = Error.INVALID_INDEX;
                 }
             }
         }
@@ -3474,7 +3482,7 @@ public class JDWP {
          * the VM Death Event which are automatically generated events - see
          * <a href="#JDWP_Event_Composite">Composite Command</a> for further details.
          */
-        static class Set implements Command  {
+        static class Set implements UncachedCommand  {
             static final int COMMAND = 1;
 
 
@@ -3497,7 +3505,7 @@ public class JDWP {
          * generated events do not have a corresponding event request and may not be cleared
          * using this command.
          */
-        static class Clear implements Command  {
+        static class Clear implements UncachedCommand  {
             static final int COMMAND = 2;
 
 
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.jetbrains.sa.jdi.*;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.IncompatibleThreadStateException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Vendor-specific command sets (128-255), registered in {@link JDWPProxy} the same way as {@link JDWP}
+ */
+@SuppressWarnings({"unused", "DanglingJavadoc"})
+public class JDWPExtensions {
+
+    static class Batch {
+        static final int COMMAND_SET = 128;
+        private Batch() {}  // hide constructor
+
+        /**
+         * Executes a list of sub-commands and returns all their replies in one packet,
+         * sub-commands are executed in order, with the reply cache, as if they were sent one by one.
+         * <p>
+         * Request: int count, then for each sub-command: byte cmdSet, byte cmd, int data length, data.
+         * <br>
+         * Reply: int count, then for each sub-reply: short errorCode, int data length, data.
+         * @see BatchClient
+         */
+        static class Execute implements UncachedCommand  {
+            static final int COMMAND = 1;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                int count = command.readInt();
+                answer.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    Packet p = new Packet();
+                    p.id = answer.id();
+                    p.flags = Packet.NoFlags;
+                    p.cmdSet = (short) (command.readByte() & 0xff);
+                    p.cmd = (short) (command.readByte() & 0xff);
+                    p.data = command.readByteArray(command.readInt());
+                    PacketStream subAnswer = new PacketStream(vm, p.id, p.cmdSet, p.cmd);
+                    JDWPProxy.execute(vm, p, subAnswer);
+                    answer.writeShort(subAnswer.pkt.errorCode);
+                    answer.writeInt(subAnswer.dataStream.size());
+                    answer.writeByteArray(subAnswer.dataStream.toByteArray());
+                }
+            }
+        }
+    }
+
+    static class ReferenceTypes {
+        static final int COMMAND_SET = 129;
+        private ReferenceTypes() {}  // hide constructor
+
+        /**
+         * Returns everything needed to resolve a list of reference types in one reply:
+         * the data of <a href="#JDWP_ReferenceType_SignatureWithGeneric">SignatureWithGeneric</a>,
+         * <a href="#JDWP_ReferenceType_Status">Status</a>,
+         * <a href="#JDWP_ReferenceType_SourceFile">SourceFile</a>,
+         * <a href="#JDWP_ClassType_Superclass">Superclass</a>,
+         * <a href="#JDWP_ReferenceType_Interfaces">Interfaces</a>,
+         * <a href="#JDWP_ReferenceType_FieldsWithGeneric">FieldsWithGeneric</a> and
+         * <a href="#JDWP_ReferenceType_MethodsWithGeneric">MethodsWithGeneric</a>.
+         * If requested, all types nested in the requested ones are appended to the reply.
+         * <p>
+         * Request: boolean withNested, int count, referenceTypeID[count].
+         * <br>
+         * Reply: int count, then for each type: byte refTypeTag, referenceTypeID, string signature,
+         * string genericSignature, int status, string sourceFile (empty if absent), classID superclass
+         * (null for interfaces and arrays), int interfacesCount, interfaceID[interfacesCount],
+         * int fieldsCount, FieldInfo[fieldsCount], int methodsCount, MethodInfo[methodsCount].
+         */
+        static class Info implements Command  {
+            static final int COMMAND = 1;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                boolean withNested = command.readBoolean();
+                int count = command.readInt();
+                Set<ReferenceTypeImpl> types = new LinkedHashSet<ReferenceTypeImpl>();
+                for (int i = 0; i < count; i++) {
+                    types.add(command.readReferenceType());
+                }
+                if (withNested) {
+                    List<ReferenceTypeImpl> queue = new ArrayList<ReferenceTypeImpl>(types);
+                    for (int i = 0; i < queue.size(); i++) {
+                        for (ReferenceTypeImpl nested : queue.get(i).nestedTypes()) {
+                            if (types.add(nested)) {
+                                queue.add(nested);
+                            }
+                        }
+                    }
+                }
+                answer.writeInt(types.size());
+                for (ReferenceTypeImpl type : types) {
+                    write(type, vm, answer);
+                }
+            }
+
+            static void write(ReferenceTypeImpl type, VirtualMachineImpl vm, PacketStream answer) {
+                JDWP.VirtualMachine.AllClassesWithGeneric.ClassInfo.write(type, vm, answer);
+                String sourceName;
+                try {
+                    sourceName = type.baseSourceName();
+                } catch (AbsentInformationException e) {
+                    sourceName = null;
+                }
+                answer.writeStringOrEmpty(sourceName);
+
+                ClassTypeImpl superclass = null;
+                List<InterfaceTypeImpl> interfaces = Collections.emptyList();
+                if (type instanceof ClassTypeImpl) {
+                    superclass = ((ClassTypeImpl) type).superclass();
+                    interfaces = ((ClassTypeImpl) type).interfaces();
+                }
+                else if (type instanceof InterfaceTypeImpl) {
+                    interfaces = ((InterfaceTypeImpl) type).superinterfaces();
+                }
+                if (superclass != null) {
+                    answer.writeClassRef(superclass.uniqueID());
+                }
+                else {
+                    answer.writeNullObjectRef();
+                }
+                answer.writeInt(interfaces.size());
+                for (InterfaceTypeImpl iface : interfaces) {
+                    answer.writeClassRef(iface.uniqueID());
+                }
+
+                List<FieldImpl> fields = type.fields();
+                answer.writeInt(fields.size());
+                for (FieldImpl field : fields) {
+                    JDWP.ReferenceType.FieldsWithGeneric.FieldInfo.write(field, vm, answer);
+                }
+                List<MethodImpl> methods = type.methods();
+                answer.writeInt(methods.size());
+                for (MethodImpl method : methods) {
+                    JDWP.ReferenceType.MethodsWithGeneric.MethodInfo.write(method, vm, answer);
+                }
+            }
+        }
+
+        /**
+         * Returns the <a href="#JDWP_Method_LineTable">LineTable</a> and
+         * <a href="#JDWP_Method_VariableTableWithGeneric">VariableTableWithGeneric</a> data
+         * for all methods of a list of reference types.
+         * <p>
+         * Request: int count, referenceTypeID[count].
+         * <br>
+         * Reply: int count, then for each type: referenceTypeID, int methodsCount, then for each method:
+         * methodID, line table (long start, long end, int linesCount, (long lineCodeIndex, int lineNumber)[linesCount]),
+         * boolean hasVariables, and if it is set the variable table (int argCnt, int slotsCount, SlotInfo[slotsCount]).
+         * Native methods have start and end of -1 and no lines.
+         */
+        static class LineAndVariableTables implements Command  {
+            static final int COMMAND = 2;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                int count = command.readInt();
+                List<ReferenceTypeImpl> types = new ArrayList<ReferenceTypeImpl>(count);
+                List<List<MethodImpl>> typesMethods = new ArrayList<List<MethodImpl>>(count);
+                List<MethodImpl> methods = new ArrayList<MethodImpl>();
+                for (int i = 0; i < count; i++) {
+                    ReferenceTypeImpl type = command.readReferenceType();
+                    List<MethodImpl> typeMethods = type.methods();
+                    types.add(type);
+                    typesMethods.add(typeMethods);
+                    methods.addAll(typeMethods);
+                }
+                // the replies are written from the filled caches
+                ConcreteMethodImpl.readTables(methods);
+
+                answer.writeInt(types.size());
+                for (int i = 0; i < types.size(); i++) {
+                    answer.writeClassRef(types.get(i).uniqueID());
+                    List<MethodImpl> typeMethods = typesMethods.get(i);
+                    answer.writeInt(typeMethods.size());
+                    for (MethodImpl method : typeMethods) {
+                        answer.writeMethodRef(method.uniqueID());
+                        write(method, vm, answer);
+                    }
+                }
+            }
+
+            private static void write(MethodImpl method, VirtualMachineImpl vm, PacketStream answer) {
+                if (method.isNative()) {
+                    answer.writeLong(-1);
+                    answer.writeLong(-1);
+                    answer.writeInt(0);
+                }
+                else {
+                    JDWP.Method.LineTable.write(method, vm, answer);
+                }
+                PacketStream variables = new PacketStream(vm, 0, 0, 0);
+                try {
+                    JDWP.Method.VariableTableWithGeneric.write(method, vm, variables);
+                    answer.writeBoolean(true);
+                    answer.writeByteArray(variables.dataStream.toByteArray());
+                } catch (AbsentInformationException e) {
+                    answer.writeBoolean(false);
+                }
+            }
+        }
+
+        /**
+         * Returns the class file of a reference type as reconstructed by SA,
+         * for decompilation of classes without sources. The bytes are cached by the type, not in the reply cache.
+         * <p>
+         * Request: referenceTypeID.
+         * <br>
+         * Reply: int length, byte[length] class file.
+         */
+        static class ClassFile implements UncachedCommand  {
+            static final int COMMAND = 3;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                ReferenceTypeImpl type = command.readReferenceType();
+                try {
+                    int length = type.classFileLength();
+                    if (length < 0) {
+                        answer.pkt.errorCode = JDWP.Error.INVALID_CLASS;
+                        return;
+                    }
+                    answer.writeInt(length);
+                    type.writeClassFile(answer.dataStream);
+                } catch (IOException e) {
+                    answer.pkt.errorCode = JDWP.Error.ABSENT_INFORMATION;
+                }
+            }
+        }
+    }
+
+    static class Threads {
+        static final int COMMAND_SET = 130;
+        private Threads() {}  // hide constructor
+
+        /**
+         * Returns the whole thread table in one reply, served from the thread snapshot computed once per session,
+         * the stacks of all threads are walked for the frame counts on the first request:
+         * the data of <a href="#JDWP_ThreadReference_Name">Name</a>,
+         * <a href="#JDWP_ThreadReference_Status">Status</a>,
+         * <a href="#JDWP_ThreadReference_ThreadGroup">ThreadGroup</a>
+         * and <a href="#JDWP_ThreadReference_FrameCount">FrameCount</a> for all threads.
+         * <p>
+         * Request: empty.
+         * <br>
+         * Reply: int count, then for each thread: threadID, string name, int threadStatus, int suspendStatus,
+         * threadGroupID, boolean daemon, int frameCount (-1 if the thread has no frames available).
+         */
+        static class Snapshot implements Command  {
+            static final int COMMAND = 1;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                List<ThreadSnapshot.Entry> entries = vm.vm.threadSnapshot().entries();
+                answer.writeInt(entries.size());
+                for (ThreadSnapshot.Entry entry : entries) {
+                    answer.writeThreadReference(entry.thread);
+                    answer.writeStringOrEmpty(entry.name);
+                    answer.writeInt(entry.status);
+                    answer.writeInt(entry.thread.suspendCount());
+                    answer.writeThreadGroupReference(entry.group());
+                    answer.writeBoolean(entry.daemon);
+                    answer.writeInt(entry.frameCount());
+                }
+            }
+        }
+
+        /**
+         * Finds deadlocks in the thread-waits-for-thread graph and returns them with the stacks of the threads.
+         * A thread waits for the owner of the monitor it is trying to enter,
+         * or for the exclusive owner of the AbstractOwnableSynchronizer it is parked on.
+         * <p>
+         * Request: empty.
+         * <br>
+         * Reply: int cycle count, then for each cycle: int thread count, then for each thread: threadID,
+         * tagged objectID of the lock it waits for (owned by the next thread in the cycle, the last one by the first),
+         * then the data of <a href="#JDWP_ThreadReference_Frames">Frames</a> for the whole stack.
+         * @see DeadlockDetector
+         */
+        static class Deadlocks implements Command  {
+            static final int COMMAND = 2;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                List<List<DeadlockDetector.BlockedThread>> cycles = DeadlockDetector.findDeadlocks(vm.vm);
+                answer.writeInt(cycles.size());
+                for (List<DeadlockDetector.BlockedThread> cycle : cycles) {
+                    answer.writeInt(cycle.size());
+                    for (DeadlockDetector.BlockedThread blocked : cycle) {
+                        answer.writeThreadReference(blocked.thread);
+                        answer.writeTaggedObjectReference(blocked.lock);
+                        List<StackFrameImpl> frames;
+                        try {
+                            frames = blocked.thread.frames();
+                        } catch (IncompatibleThreadStateException e) {
+                            frames = Collections.emptyList();
+                        }
+                        answer.writeInt(frames.size());
+                        for (StackFrameImpl frame : frames) {
+                            JDWP.ThreadReference.Frames.Frame.write(frame, vm, answer);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static class Heap {
+        static final int COMMAND_SET = 131;
+        private Heap() {}  // hide constructor
+
+        /**
+         * Returns a class histogram: instance counts and total shallow sizes per class, computed in one heap pass,
+         * sorted by size, largest first.
+         * <p>
+         * Request: int maxEntries (0 for all classes).
+         * <br>
+         * Reply: int count, then for each class: byte refTypeTag, referenceTypeID, string signature,
+         * long instanceCount, long shallowSize.
+         * @see ClassHistogram
+         */
+        static class Histogram implements MemoryCachedCommand  {
+            static final int COMMAND = 1;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                int maxEntries = command.readInt();
+                List<ClassHistogram.Entry> entries = ClassHistogram.compute(vm.vm, maxEntries);
+                answer.writeInt(entries.size());
+                for (ClassHistogram.Entry entry : entries) {
+                    answer.writeByte(entry.type.tag());
+                    answer.writeClassRef(entry.type.uniqueID());
+                    answer.writeString(entry.type.signature());
+                    answer.writeLong(entry.count);
+                    answer.writeLong(entry.size);
+                }
+            }
+        }
+
+        /**
+         * Returns retained sizes of objects from the dominator tree of the heap,
+         * the graph and the tree are computed on the first call.
+         * GC roots are thread stacks, bootstrap classes with their static fields and JNI global handles.
+         * <p>
+         * Request: int count, objectID[count].
+         * <br>
+         * Reply: int count, then for each object: long shallowSize, long retainedSize
+         * (0 for objects not reachable from GC roots), tagged objectID of the immediate dominator
+         * (null if the object is dominated only by GC roots or is not reachable).
+         * @see DominatorTree
+         */
+        static class RetainedSizes implements MemoryCachedCommand  {
+            static final int COMMAND = 2;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                DominatorTree dominators = vm.vm.heapGraph().dominators();
+                HeapGraph graph = dominators.graph();
+                int count = command.readInt();
+                int[] nodes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    nodes[i] = graph.index(command.readObjectRef());
+                    if (nodes[i] < 0) {
+                        answer.pkt.errorCode = JDWP.Error.INVALID_OBJECT;
+                        return;
+                    }
+                }
+                answer.writeInt(count);
+                for (int node : nodes) {
+                    answer.writeLong(graph.shallowSize(node));
+                    answer.writeLong(dominators.retainedSize(node));
+                    int dominator = dominators.dominator(node);
+                    answer.writeTaggedObjectReference(dominator >= 0 ? vm.vm.objectMirror(graph.address(dominator)) : null);
+                }
+            }
+        }
+
+        /**
+         * Returns the objects with the largest retained sizes among those dominated only by GC roots.
+         * <p>
+         * Request: int maxEntries (0 for all).
+         * <br>
+         * Reply: int count, then for each object: tagged objectID, long shallowSize, long retainedSize.
+         * @see DominatorTree
+         */
+        static class TopDominators implements MemoryCachedCommand  {
+            static final int COMMAND = 3;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                int maxEntries = command.readInt();
+                DominatorTree dominators = vm.vm.heapGraph().dominators();
+                HeapGraph graph = dominators.graph();
+                int[] nodes = dominators.topDominators(maxEntries);
+                answer.writeInt(nodes.length);
+                for (int node : nodes) {
+                    answer.writeTaggedObjectReference(vm.vm.objectMirror(graph.address(node)));
+                    answer.writeLong(graph.shallowSize(node));
+                    answer.writeLong(dominators.retainedSize(node));
+                }
+            }
+        }
+
+        /**
+         * Returns the shortest chain of strong references from a GC root to the object,
+         * found with a breadth first search over the referring objects of the heap graph:
+         * referents of weak, soft, phantom and final references do not keep objects alive and are not followed.
+         * <p>
+         * Request: objectID.
+         * <br>
+         * Reply: byte rootKind (0 if the object is not strongly reachable: 1 thread, 2 stack local, 3 bootstrap class,
+         * 4 static field of a bootstrap class, 5 JNI global), string rootDescription, int count,
+         * then for each object from the root to the requested one: tagged objectID, string referenceName
+         * (the field or [index] of the previous object, "static name", "&lt;class&gt;" or "&lt;class loader&gt;"
+         * for the references kept for classes of other loaders, empty for the root).
+         * @see GcRootPath
+         */
+        static class PathToRoot implements MemoryCachedCommand  {
+            static final int COMMAND = 4;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                GcRootPath path = GcRootPath.find(vm.vm, command.readObjectRef());
+                if (path == null) {
+                    answer.pkt.errorCode = JDWP.Error.INVALID_OBJECT;
+                    return;
+                }
+                answer.writeByte(path.rootKind);
+                answer.writeString(path.rootDescription);
+                answer.writeInt(path.objects.size());
+                for (int i = 0; i < path.objects.size(); i++) {
+                    answer.writeTaggedObjectReference(path.objects.get(i));
+                    answer.writeString(path.fields.get(i));
+                }
+            }
+        }
+
+        /**
+         * Returns instances of exactly the class whose field path satisfies a predicate,
+         * evaluated during one heap scan: only the matching objects are returned.
+         * <p>
+         * Request: referenceTypeID, int maxInstances (0 for all), int pathLength, string[pathLength] fieldNames
+         * (the next field is looked up in the class of the object referenced by the previous one,
+         * objects with a null or a missing field on the path do not match), byte operator, then by operator:
+         * 1 is null, 2 is not null: nothing; 3 equals: tagged primitive value;
+         * 4 in range: tagged primitive min and max, both inclusive; 5 string equals, 6 string starts with: string.
+         * <br>
+         * Reply: int count, tagged objectID[count].
+         * @see InstanceFilter
+         */
+        static class FilterInstances implements MemoryCachedCommand  {
+            static final int COMMAND = 5;
+
+            public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                ReferenceTypeImpl type = command.readReferenceType();
+                int maxInstances = command.readInt();
+                int pathLength = command.readInt();
+                List<String> path = new ArrayList<String>(pathLength);
+                for (int i = 0; i < pathLength; i++) {
+                    path.add(command.readString());
+                }
+                byte operator = command.readByte();
+                InstanceFilter filter;
+                try {
+                    switch (operator) {
+                        case InstanceFilter.IS_NULL:
+                        case InstanceFilter.NOT_NULL:
+                            filter = InstanceFilter.isNull(vm.vm, type, path, operator == InstanceFilter.IS_NULL);
+                            break;
+                        case InstanceFilter.EQUALS:
+                            Number value = readPrimitive(command);
+                            filter = InstanceFilter.inRange(vm.vm, type, path, value, value);
+                            break;
+                        case InstanceFilter.IN_RANGE:
+                            filter = InstanceFilter.inRange(vm.vm, type, path, readPrimitive(command), readPrimitive(command));
+                            break;
+                        case InstanceFilter.STRING_EQUALS:
+                        case InstanceFilter.STRING_PREFIX:
+                            filter = InstanceFilter.string(vm.vm, type, path, command.readString(),
+                                    operator == InstanceFilter.STRING_PREFIX);
+                            break;
+                        default:
+                            answer.pkt.errorCode = JDWP.Error.ILLEGAL_ARGUMENT;
+                            return;
+                    }
+                } catch (IllegalArgumentException e) {
+                    answer.pkt.errorCode = JDWP.Error.ILLEGAL_ARGUMENT;
+                    return;
+                }
+                List<ObjectReferenceImpl> instances = filter.instances(maxInstances);
+                answer.writeInt(instances.size());
+                for (ObjectReferenceImpl instance : instances) {
+                    answer.writeTaggedObjectReference(instance);
+                }
+            }
+
+            /**
+             * @return null for a non primitive tag
+             */
+            private static Number readPrimitive(PacketStream command) {
+                switch (command.readByte()) {
+                    case JDWP.Tag.BOOLEAN:
+                        return command.readBoolean() ? 1 : 0;
+                    case JDWP.Tag.BYTE:
+                        return command.readByte();
+                    case JDWP.Tag.CHAR:
+                        return (int) command.readChar();
+                    case JDWP.Tag.SHORT:
+                        return command.readShort();
+                    case JDWP.Tag.INT:
+                        return command.readInt();
+                    case JDWP.Tag.LONG:
+                        return command.readLong();
+                    case JDWP.Tag.FLOAT:
+                        return command.readFloat();
+                    case JDWP.Tag.DOUBLE:
+                        return command.readDouble();
+                    default:
+                        return null;
+                }
+            }
+        }
+    }
+}
@@ -31,8 +31,13 @@ public class JDWPProxy {
     private static Map<Integer, Map<Integer, Command>> COMMANDS = new HashMap<Integer, Map<Integer, Command>>();
 
     static {
+        registerCommands(JDWP.class);
+        registerCommands(JDWPExtensions.class);
+    }
+
+    private static void registerCommands(Class<?> commandSetsHolder) {
         try {
-            Class<?>[] declaredClasses = JDWP.class.getDeclaredClasses();
+            Class<?>[] declaredClasses = commandSetsHolder.getDeclaredClasses();
             for (Class<?> declaredClass : declaredClasses) {
                 try {
                     int setId = (Integer) declaredClass.getDeclaredField("COMMAND_SET").get(null);
@@ -63,39 +68,64 @@ public class JDWPProxy {
             while (true) {
                 byte[] b = connection.readPacket();
                 Packet p = Packet.fromByteArray(b);
-                int cmdSet = p.cmdSet;
-                int cmd = p.cmd;
-                PacketStream packetStream = new PacketStream(virtualMachine, p.id, cmdSet, cmd);
-                Command command = COMMANDS.get(cmdSet).get(cmd);
-                try {
-                    command.reply(virtualMachine, packetStream, new PacketStream(virtualMachine, p));
-                } catch (VMDisconnectedException vde) {
-                    throw  vde;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    packetStream.pkt.errorCode = JDWP.Error.INTERNAL;
-                    packetStream.dataStream.reset();
-
-                    // serialize the original exception as a utf8 string
-                    try {
-                        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                        PrintStream printStream = new PrintStream(byteStream, false, "UTF8");
-                        e.printStackTrace(printStream);
-                        printStream.close();
-                        packetStream.writeString(byteStream.toString("UTF8"));
-                    } catch (Exception ignored) {
-                    }
-                }
+                PacketStream packetStream = new PacketStream(virtualMachine, p.id, p.cmdSet, p.cmd);
+                execute(virtualMachine, p, packetStream);
                 packetStream.send();
             }
         } catch (VMDisconnectedException ignored) {
         } finally {
+            virtualMachine.replyCache.close();
             connection.close();
             //todo: dispose breaks subsequent connections, need to investigate
             vm.dispose();
         }
     }
 
+    /**
+     * Executes the command packet {@code p} writing the reply into {@code answer}, serving it from the reply cache if possible
+     */
+    static void execute(VirtualMachineImpl virtualMachine, Packet p, PacketStream answer) {
+        Map<Integer, Command> commands = COMMANDS.get((int) p.cmdSet);
+        Command command = commands != null ? commands.get((int) p.cmd) : null;
+        if (command == null) {
+            answer.pkt.errorCode = JDWP.Error.NOT_IMPLEMENTED;
+            return;
+        }
+        ReplyCache replyCache = virtualMachine.replyCache;
+        boolean cacheable = replyCache.isEnabled() && !(command instanceof UncachedCommand);
+        if (cacheable) {
+            byte[] cached = replyCache.get(p.cmdSet, p.cmd, p.data);
+            if (cached != null) {
+                answer.dataStream.write(cached, 0, cached.length);
+                return;
+            }
+        }
+        try {
+            command.reply(virtualMachine, answer, new PacketStream(virtualMachine, p));
+        } catch (VMDisconnectedException vde) {
+            throw  vde;
+        } catch (Exception e) {
+            e.printStackTrace();
+            answer.pkt.errorCode = JDWP.Error.INTERNAL;
+            answer.dataStream.reset();
+
+            // serialize the original exception as a utf8 string
+            try {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                PrintStream printStream = new PrintStream(byteStream, false, "UTF8");
+                e.printStackTrace(printStream);
+                printStream.close();
+                answer.writeString(byteStream.toString("UTF8"));
+            } catch (Exception ignored) {
+            }
+            return;
+        }
+        // error replies are not cached, they may be caused by a transient failure
+        if (cacheable && answer.pkt.errorCode == Packet.ReplyNoError) {
+            replyCache.put(p.cmdSet, p.cmd, p.data, answer.dataStream.toByteArray(), !(command instanceof MemoryCachedCommand));
+        }
+    }
+
     private static void sendVMStart(VirtualMachineImpl virtualMachine) {
         PacketStream packetStream = new PacketStream(virtualMachine, 0, 64, 100);
         packetStream.pkt.flags = Packet.NoFlags;
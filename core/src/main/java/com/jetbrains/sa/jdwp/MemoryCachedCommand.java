@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+/**
+ * Marker for commands whose replies are memoized by {@link ReplyCache} only in memory, never persisted in {@link DiskReplyCache}:
+ * heap queries, their replies grow with the heap and each request (class, object, filter) is unlikely to be repeated in the next session.
+ */
+public interface MemoryCachedCommand extends Command {
+}
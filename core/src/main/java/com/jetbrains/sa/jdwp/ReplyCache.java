@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memoizes successful replies to read-only commands.
+ * While SA is attached the target can not change, so a reply is a pure function of (cmdSet, cmd, request bytes).
+ * Entries are evicted in LRU order once the byte budget ({@code sa.jdwp.reply.cache.size}, 0 disables) is exceeded.
+ * For core files replies are also persisted in a {@link DiskReplyCache} ({@code sa.jdwp.reply.cache.disk=false} disables,
+ * {@code sa.jdwp.reply.cache.disk.size} is its size budget),
+ * so that the next session for the same core does not need to compute them again, except for {@link MemoryCachedCommand}s.
+ */
+class ReplyCache {
+    static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+    // approximate per entry overhead of the key, the map entry and the arrays headers
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long myMaxSize;
+    private long mySize = 0;
+    private final LinkedHashMap<Key, byte[]> myReplies = new LinkedHashMap<Key, byte[]>(256, 0.75f, true);
+    private final DiskReplyCache myDiskCache;
+
+    ReplyCache(long maxSize, DiskReplyCache diskCache) {
+        myMaxSize = maxSize;
+        myDiskCache = diskCache;
+    }
+
+    static ReplyCache create(com.jetbrains.sa.jdi.VirtualMachineImpl vm) {
+        long maxSize = Long.getLong("sa.jdwp.reply.cache.size", DEFAULT_SIZE);
+        DiskReplyCache diskCache = null;
+        String coreFileName = vm.coreFileName();
+        if (maxSize > 0 && coreFileName != null && !"false".equals(System.getProperty("sa.jdwp.reply.cache.disk"))) {
+            diskCache = DiskReplyCache.open(coreFileName, vm.name(),
+                    Long.getLong("sa.jdwp.reply.cache.disk.size", DiskReplyCache.DEFAULT_SIZE));
+        }
+        return new ReplyCache(maxSize, diskCache);
+    }
+
+    boolean isEnabled() {
+        return myMaxSize > 0;
+    }
+
+    byte[] get(int cmdSet, int cmd, byte[] request) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Key key = new Key(cmdSet, cmd, request);
+        byte[] reply = myReplies.get(key);
+        if (reply == null && myDiskCache != null) {
+            reply = myDiskCache.get(key);
+            if (reply != null) {
+                putInMemory(key, reply);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * @param persistent the reply may also be stored in the disk cache
+     */
+    void put(int cmdSet, int cmd, byte[] request, byte[] reply, boolean persistent) {
+        if (!isEnabled()) {
+            return;
+        }
+        Key key = new Key(cmdSet, cmd, request);
+        if (persistent && myDiskCache != null) {
+            myDiskCache.put(key, reply);
+        }
+        putInMemory(key, reply);
+    }
+
+    private void putInMemory(Key key, byte[] reply) {
+        long size = sizeOf(key.myRequest, reply);
+        if (size > myMaxSize) {
+            return;
+        }
+        byte[] old = myReplies.put(key, reply);
+        if (old != null) {
+            mySize -= sizeOf(key.myRequest, old);
+        }
+        mySize += size;
+        Iterator<Map.Entry<Key, byte[]>> iterator = myReplies.entrySet().iterator();
+        while (mySize > myMaxSize && iterator.hasNext()) {
+            Map.Entry<Key, byte[]> eldest = iterator.next();
+            mySize -= sizeOf(eldest.getKey().myRequest, eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    void clear() {
+        myReplies.clear();
+        mySize = 0;
+    }
+
+    void close() {
+        clear();
+        if (myDiskCache != null) {
+            myDiskCache.close();
+        }
+    }
+
+    private static long sizeOf(byte[] request, byte[] reply) {
+        return request.length + reply.length + ENTRY_OVERHEAD;
+    }
+
+    static final class Key {
+        final int myCommand;
+        final byte[] myRequest;
+        private final int myHash;
+
+        Key(int cmdSet, int cmd, byte[] request) {
+            this((cmdSet << 8) | cmd, request);
+        }
+
+        Key(int command, byte[] request) {
+            myCommand = command;
+            myRequest = request;
+            myHash = 31 * myCommand + Arrays.hashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return myCommand == key.myCommand && Arrays.equals(myRequest, key.myRequest);
+        }
+
+        @Override
+        public int hashCode() {
+            return myHash;
+        }
+    }
+}
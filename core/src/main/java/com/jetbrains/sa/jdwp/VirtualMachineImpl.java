@@ -29,9 +29,12 @@ public class VirtualMachineImpl {
     int sizeofClassRef = 8;
     int sizeofFrameRef = 8;
 
+    final ReplyCache replyCache;
+
     public VirtualMachineImpl(Connection myConnection, com.jetbrains.sa.jdi.VirtualMachineImpl vm) {
         this.myConnection = myConnection;
         this.vm = vm;
+        this.replyCache = ReplyCache.create(vm);
     }
 
     void sendToTarget(Packet pkt) {